@@ -13,4 +13,23 @@ public interface Const {
     String KEY_STORE_PASSWORD_PROPERTY_NAME = "key_store_password";
     String KEY_MANAGER_PASSWORD_PROPERTY_NAME = "key_manager_password";
     String NEED_CLIENT_AUTH = "need_client_auth";
+
+    String SUBSCRIPTIONS_SHARDS_PROPERTY_NAME = "subscriptions_shards";
+    String MATCHES_CACHE_SIZE_PROPERTY_NAME = "matches_cache_size";
+    String SHARED_SUBSCRIPTION_STRATEGY_PROPERTY_NAME = "shared_subscription_strategy";
+    String SUBSCRIPTIONS_COMPACTION_INTERVAL_PROPERTY_NAME = "subscriptions_compaction_interval";
+    String SUBSCRIPTIONS_COMPACTION_DEAD_PERCENT_PROPERTY_NAME = "subscriptions_compaction_dead_percent";
+    String SUBSCRIPTIONS_SNAPSHOT_PATH_PROPERTY_NAME = "subscriptions_snapshot_path";
+    String SUBSCRIPTIONS_SNAPSHOT_INTERVAL_PROPERTY_NAME = "subscriptions_snapshot_interval";
+
+    String OFFLINE_QUEUE_MAX_DEPTH_PROPERTY_NAME = "offline_queue_max_depth";
+    String OFFLINE_QUEUE_OVERFLOW_POLICY_PROPERTY_NAME = "offline_queue_overflow_policy";
+
+    String MESSAGES_STORE_PATH_PROPERTY_NAME = "messages_store_path";
+    String MESSAGES_SEGMENT_SIZE_PROPERTY_NAME = "messages_segment_size";
+    String MESSAGES_FLUSH_INTERVAL_PROPERTY_NAME = "messages_flush_interval";
+
+    String COMMIT_MODE_PROPERTY_NAME = "commit_mode";
+    String COMMIT_INTERVAL_PROPERTY_NAME = "commit_interval";
+    String COMMIT_BATCH_SIZE_PROPERTY_NAME = "commit_batch_size";
 }
@@ -15,20 +15,34 @@
  */
 package me.ilbba.mqtt.spi.iface;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.ReferenceCounted;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 
 /**
  * 消息存储接口
  */
 public interface IMessagesStore {
 
-    class StoredMessage implements Serializable {
+    /**
+     * A message, whose payload is either a byte[] or a ByteBuf in place of it. The ByteBuf can
+     * be a view of a storage or a pooled buffer, e.g. the one of the inbound publish, the
+     * message holds a reference of it, released when the message is released. Every send of
+     * the payload takes a further reference with {@link #getPayloadBuf()}, so the payload is
+     * freed once the message is released, e.g. when the last subscriber acks it, and all the
+     * sends are done.
+     */
+    class StoredMessage implements Serializable, ReferenceCounted {
         final MqttQoS m_qos;
         final byte[] m_payload;
+        //payload in place of m_payload, view of a storage or pooled buffer
+        private final transient ByteBuf m_payloadBuf;
         final String m_topic;
         private boolean m_retained;
         private String m_clientID;
@@ -39,15 +53,78 @@ public interface IMessagesStore {
         public StoredMessage(byte[] message, MqttQoS qos, String topic) {
             m_qos = qos;
             m_payload = message;
+            m_payloadBuf = null;
+            m_topic = topic;
+        }
+
+        /**
+         * Create a message whose payload is a view of the storage, not copied.
+         */
+        public StoredMessage(ByteBuffer payloadView, MqttQoS qos, String topic) {
+            m_qos = qos;
+            m_payload = null;
+            m_payloadBuf = Unpooled.wrappedBuffer(payloadView.asReadOnlyBuffer());
             m_topic = topic;
         }
 
+        /**
+         * Create a message holding the payload without copying it, it takes over a reference
+         * of the payload, so the caller has to retain it if it keeps using it.
+         */
+        public StoredMessage(ByteBuf payload, MqttQoS qos, String topic) {
+            m_qos = qos;
+            m_payload = null;
+            m_payloadBuf = payload;
+            m_topic = topic;
+        }
+
+        /**
+         * @return the bytes of the payload, that for a ByteBuf is a copy of them.
+         */
+        public byte[] getPayloadBytes() {
+            if (m_payloadBuf == null) {
+                return m_payload;
+            }
+            byte[] bytes = new byte[m_payloadBuf.readableBytes()];
+            m_payloadBuf.getBytes(m_payloadBuf.readerIndex(), bytes);
+            return bytes;
+        }
+
+        /**
+         * @return the payload to send, not copied, with its own reference released by the
+         * write of it.
+         */
+        public ByteBuf getPayloadBuf() {
+            if (m_payloadBuf == null) {
+                return Unpooled.wrappedBuffer(m_payload);
+            }
+            return m_payloadBuf.retainedDuplicate();
+        }
+
+        /**
+         * Serialize the messages backed by a ByteBuf as the ones holding the payload.
+         */
+        private Object writeReplace() {
+            if (m_payloadBuf == null) {
+                return this;
+            }
+            StoredMessage copy = new StoredMessage(getPayloadBytes(), m_qos, m_topic);
+            copy.m_retained = m_retained;
+            copy.m_clientID = m_clientID;
+            copy.m_msgID = m_msgID;
+            copy.m_guid = m_guid;
+            return copy;
+        }
+
         public MqttQoS getQos() {
             return m_qos;
         }
 
+        /**
+         * @return a copy of the payload, that can be kept after the release of the message.
+         */
         public ByteBuffer getPayload() {
-            return (ByteBuffer) ByteBuffer.allocate(m_payload.length).put(m_payload).flip();
+            return ByteBuffer.wrap(getPayloadBytes());
         }
 
         public String getTopic() {
@@ -78,7 +155,14 @@ public interface IMessagesStore {
             return m_msgID;
         }
 
+        /**
+         * @return the payload not copied: for a ByteBuf a read-only view of it, e.g. of the
+         * storage, valid only till the message is released.
+         */
         public ByteBuffer getMessage() {
+            if (m_payloadBuf != null) {
+                return m_payloadBuf.nioBuffer().asReadOnlyBuffer();
+            }
             return ByteBuffer.wrap(m_payload);
         }
 
@@ -90,6 +174,57 @@ public interface IMessagesStore {
             return m_retained;
         }
 
+        @Override
+        public int refCnt() {
+            return m_payloadBuf == null ? 1 : m_payloadBuf.refCnt();
+        }
+
+        @Override
+        public StoredMessage retain() {
+            if (m_payloadBuf != null) {
+                m_payloadBuf.retain();
+            }
+            return this;
+        }
+
+        @Override
+        public StoredMessage retain(int increment) {
+            if (m_payloadBuf != null) {
+                m_payloadBuf.retain(increment);
+            }
+            return this;
+        }
+
+        @Override
+        public StoredMessage touch() {
+            if (m_payloadBuf != null) {
+                m_payloadBuf.touch();
+            }
+            return this;
+        }
+
+        @Override
+        public StoredMessage touch(Object hint) {
+            if (m_payloadBuf != null) {
+                m_payloadBuf.touch(hint);
+            }
+            return this;
+        }
+
+        /**
+         * Release the reference of the payload held by the message, a payload in a byte[] is
+         * left to the GC.
+         */
+        @Override
+        public boolean release() {
+            return m_payloadBuf != null && m_payloadBuf.release();
+        }
+
+        @Override
+        public boolean release(int decrement) {
+            return m_payloadBuf != null && m_payloadBuf.release(decrement);
+        }
+
         @Override
         public String toString() {
             return "PublishEvent{" +
@@ -114,12 +249,14 @@ public interface IMessagesStore {
     void storeRetained(String topic, String guid);
 
     /**
-     * Return a list of retained messages that satisfy the condition.
+     * Return a list of retained messages that satisfy the condition, each one to be released
+     * by the caller.
      */
     Collection<StoredMessage> searchMatching(IMatchingCondition condition);
 
     /**
-     * Persist the message.
+     * Persist the message. The store takes over the reference of its payload, released once
+     * written, so the caller has to retain the message if it keeps reading the payload.
      *
      * @return the unique id in the storage (guid).
      */
@@ -129,11 +266,28 @@ public interface IMessagesStore {
      * Return the list of persisted publishes for the given clientID.
      * For QoS1 and QoS2 with clean session flag, this method return the list of
      * missed publish events while the client was disconnected.
+     * Each message is to be released by the caller.
      */
     List<StoredMessage> listMessagesInSession(Collection<String> guids);
 
     void dropMessagesInSession(String clientID);
 
+    /**
+     * Remove the stored messages whose guid is not referenced, called at the start to drop the
+     * messages whose references were lost by a crash.
+     */
+    void dropUnreferenced(Set<String> referencedGuids);
+
+    /**
+     * Release the message once it doesn't need to be delivered anymore, so its storage can
+     * be reclaimed. The retained messages are kept as long as they are retained.
+     */
+    void removeStoredMessage(String guid);
+
+    /**
+     * @return the message, whose payload can be a view of the storage kept mapped till the
+     * caller releases it, or null if it was removed.
+     */
     StoredMessage getMessageByGuid(String guid);
 
     void cleanRetained(String topic);
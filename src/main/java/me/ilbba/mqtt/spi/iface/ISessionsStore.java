@@ -106,13 +106,24 @@ public interface ISessionsStore {
 //     */
 //    ClientSession sessionForClient(String clientID);
 
+    /**
+     * The PUBACK of a QoS 1 message: remove it from the messages in flight and release its
+     * packet identifier. A QoS 2 message leaves them with {@link #secondPhaseAckWaiting}.
+     */
     void inFlightAck(String clientID, int messageID);
 
     /**
-     * Save the binding messageID, clientID <-> guid
+     * Save the binding messageID, clientID <-> guid, referencing the stored message.
      */
     void inFlight(String clientID, int messageID, String guid);
 
+    /**
+     * Move the guid from the queue of the client to its messages in flight with messageID.
+     * The message is referenced by the in flight window before the queue releases it, so a
+     * commit in between can't remove it.
+     */
+    void moveToInFlight(String clientID, int messageID, String guid);
+
     /**
      * Return the next valid packetIdentifier for the given client session.
      */
@@ -123,18 +134,38 @@ public interface ISessionsStore {
      */
     void bindToDeliver(String guid, String clientID);
 
+    /**
+     * Store the guid to be later published to all the clients, the message is stored once and
+     * referenced by their queues, it's removed from the messages store when the last reference
+     * is removed, also at once if no client takes it.
+     */
+    void bindToDeliver(String guid, Collection<String> clientIDs);
+
+    /**
+     * Remove the queue, the messages in flight and the ones waiting for the PUBCOMP of the
+     * session, releasing their references and the packet identifiers. Invoked when a clean
+     * session ends.
+     */
+    void dropQueue(String clientID);
+
     /**
      * List the guids for retained messages for the session
      */
     Collection<String> enqueued(String clientID);
 
     /**
-     * Remove form the queue of stored messages for session.
+     * Remove form the queue of stored messages for session, releasing its reference. To
+     * deliver it use {@link #moveToInFlight}, or call {@link #inFlight} before this, else the
+     * message can be removed from the store when it's in flight.
      */
     void removeEnqueued(String clientID, String guid);
 
     void secondPhaseAcknowledged(String clientID, int messageID);
 
+    /**
+     * The PUBREC of a QoS 2 message: move it from the messages in flight to the ones waiting
+     * for the PUBCOMP, in place of {@link #inFlightAck}, keeping its packet identifier in use.
+     */
     void secondPhaseAckWaiting(String clientID, int messageID);
 
     String mapToGuid(String clientID, int messageID);
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package me.ilbba.mqtt.spi.impl;
+
+/**
+ * When the changes to the persistent store are committed to disk.
+ */
+public enum CommitMode {
+    /**
+     * Commit periodically, an operation is acknowledged at once and can be lost on a crash.
+     */
+    ASYNC,
+    /**
+     * Commit the operations in batches, when the oldest one waited the commit interval or when
+     * the batch reached its max size. An operation is acknowledged once its batch is committed.
+     */
+    GROUP,
+    /**
+     * Commit every operation before acknowledging it.
+     */
+    SYNC;
+
+    /**
+     * @return the mode with the given name, case insensitive, or the default one if the name
+     * is null.
+     */
+    public static CommitMode parse(String name, CommitMode defaultMode) {
+        if (name == null || name.trim().isEmpty()) {
+            return defaultMode;
+        }
+        return valueOf(name.trim().toUpperCase());
+    }
+}
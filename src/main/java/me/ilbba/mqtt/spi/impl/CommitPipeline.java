@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package me.ilbba.mqtt.spi.impl;
+
+import org.mapdb.DB;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Commits the MapDB store, and forces the messages log before it, following a
+ * {@link CommitMode}. The stores report every change they do with {@link #operation()}, the
+ * only point where the operations are counted. A caller registers with
+ * {@link #whenDurable(Runnable)} after its changes to get called back once they are durable,
+ * e.g. to send the PUBACK of a QoS 1 message only after its state is on disk.
+ *
+ * After a commit the stored messages whose last reference it removed are removed from the
+ * messages store, so a crash never leaves a committed reference to a removed message.
+ *
+ * The changes not reported as operations are committed with the next commit, in
+ * {@link CommitMode#GROUP} and {@link CommitMode#SYNC} modes at least every
+ * {@value #IDLE_COMMIT_INTERVAL} ms also when there are no operations. The callbacks run in the
+ * committing thread, so they must be quick.
+ */
+public class CommitPipeline {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CommitPipeline.class);
+
+    static final long IDLE_COMMIT_INTERVAL = 30000; // in milliseconds
+
+    /**
+     * Counters of the commits, a snapshot taken by {@link #stats()}.
+     */
+    public static class CommitStats {
+        public final long commits;
+        public final long operations;
+        public final long failures;
+        public final long maxBatchSize;
+        public final long totalLatencyNanos;
+        public final long maxLatencyNanos;
+
+        public CommitStats(long commits, long operations, long failures, long maxBatchSize,
+                           long totalLatencyNanos, long maxLatencyNanos) {
+            this.commits = commits;
+            this.operations = operations;
+            this.failures = failures;
+            this.maxBatchSize = maxBatchSize;
+            this.totalLatencyNanos = totalLatencyNanos;
+            this.maxLatencyNanos = maxLatencyNanos;
+        }
+
+        public double meanBatchSize() {
+            return commits == 0 ? 0.0 : (double) operations / commits;
+        }
+
+        public double meanLatencyMillis() {
+            return commits == 0 ? 0.0 : totalLatencyNanos / 1e6 / commits;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[commits: %d, operations: %d, failures: %d, mean batch: %.1f, max batch: %d, " +
+                            "mean latency: %.3f ms, max latency: %.3f ms]", commits, operations, failures,
+                    meanBatchSize(), maxBatchSize, meanLatencyMillis(), maxLatencyNanos / 1e6);
+        }
+    }
+
+    private final DB m_db;
+    private final CommitMode m_mode;
+    private final long m_interval; // in milliseconds
+    private final int m_maxBatchSize;
+    private volatile SegmentedMessagesStore m_messagesStore;
+    private volatile DefaultSessionsStore m_sessionsStore;
+
+    private final Object m_lock = new Object();
+    //guarded by m_lock
+    private List<Runnable> m_pending = new ArrayList<Runnable>();
+    private int m_pendingOperations;
+    private long m_oldestPending;
+    private boolean m_running;
+    private Thread m_committer;
+    private volatile long m_lastCommit = System.currentTimeMillis();
+
+    private final AtomicLong m_commits = new AtomicLong();
+    private final AtomicLong m_operations = new AtomicLong();
+    private final AtomicLong m_failures = new AtomicLong();
+    private final AtomicLong m_largestBatch = new AtomicLong();
+    private final AtomicLong m_totalLatency = new AtomicLong();
+    private final AtomicLong m_maxLatency = new AtomicLong();
+
+    /**
+     * @param interval the period of the commits in {@link CommitMode#ASYNC} mode, the max wait of
+     *                 an operation in {@link CommitMode#GROUP} mode.
+     * @param maxBatchSize the operations that trigger a commit in {@link CommitMode#GROUP} mode.
+     */
+    public CommitPipeline(DB db, CommitMode mode, long interval, int maxBatchSize) {
+        m_db = db;
+        m_mode = mode;
+        m_interval = interval;
+        m_maxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    /**
+     * The messages log forced to disk before every commit.
+     */
+    void setMessagesStore(SegmentedMessagesStore messagesStore) {
+        m_messagesStore = messagesStore;
+    }
+
+    /**
+     * The sessions store whose unreferenced messages are removed after every commit.
+     */
+    void setSessionsStore(DefaultSessionsStore sessionsStore) {
+        m_sessionsStore = sessionsStore;
+    }
+
+    public CommitMode mode() {
+        return m_mode;
+    }
+
+    public void start() {
+        synchronized (m_lock) {
+            m_running = true;
+        }
+        m_committer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (m_mode == CommitMode.ASYNC) {
+                    commitPeriodically();
+                } else {
+                    commitGroups();
+                }
+            }
+        }, "store-committer");
+        m_committer.setDaemon(true);
+        m_committer.start();
+    }
+
+    /**
+     * Report an operation done on the store, called by the stores once for every change.
+     */
+    void operation() {
+        if (m_mode == CommitMode.SYNC) {
+            synchronized (this) {
+                commit(new ArrayList<Runnable>(0), 1);
+            }
+            return;
+        }
+        synchronized (m_lock) {
+            if (!hasPending()) {
+                m_oldestPending = System.currentTimeMillis();
+            }
+            m_pendingOperations++;
+            if (m_mode == CommitMode.GROUP && m_pendingOperations >= m_maxBatchSize) {
+                m_lock.notify();
+            }
+        }
+    }
+
+    /**
+     * Call back once the operations reported so far are durable: at once in
+     * {@link CommitMode#SYNC} mode, where they are already committed, and in
+     * {@link CommitMode#ASYNC} mode, that doesn't wait for the commits. In
+     * {@link CommitMode#GROUP} mode after the next commit, within the interval.
+     */
+    public void whenDurable(Runnable onDurable) {
+        if (m_mode != CommitMode.GROUP) {
+            onDurable.run();
+            return;
+        }
+        synchronized (m_lock) {
+            if (!hasPending()) {
+                m_oldestPending = System.currentTimeMillis();
+            }
+            m_pending.add(onDurable);
+        }
+    }
+
+    //guarded by m_lock
+    private boolean hasPending() {
+        return m_pendingOperations > 0 || !m_pending.isEmpty();
+    }
+
+    private void commitGroups() {
+        while (true) {
+            List<Runnable> batch;
+            int operations;
+            synchronized (m_lock) {
+                try {
+                    while (m_running) {
+                        if (m_pendingOperations >= m_maxBatchSize) {
+                            break;
+                        }
+                        final long now = System.currentTimeMillis();
+                        long wait = !hasPending() ? m_lastCommit + IDLE_COMMIT_INTERVAL - now
+                                : m_oldestPending + m_interval - now;
+                        if (wait <= 0) {
+                            break;
+                        }
+                        m_lock.wait(wait);
+                    }
+                } catch (InterruptedException ex) {
+                    m_running = false;
+                }
+                if (!m_running && !hasPending()) {
+                    return;
+                }
+                batch = takePending();
+                operations = m_pendingOperations;
+                m_pendingOperations = 0;
+            }
+            synchronized (this) {
+                commit(batch, operations);
+            }
+        }
+    }
+
+    private void commitPeriodically() {
+        while (true) {
+            int operations;
+            synchronized (m_lock) {
+                try {
+                    if (m_running) {
+                        m_lock.wait(m_interval);
+                    }
+                } catch (InterruptedException ex) {
+                    m_running = false;
+                }
+                operations = m_pendingOperations;
+                m_pendingOperations = 0;
+                if (!m_running && operations == 0) {
+                    return;
+                }
+            }
+            synchronized (this) {
+                commit(new ArrayList<Runnable>(0), operations);
+            }
+        }
+    }
+
+    private List<Runnable> takePending() {
+        List<Runnable> batch = m_pending;
+        m_pending = new ArrayList<Runnable>();
+        return batch;
+    }
+
+    /**
+     * Commit and run the callbacks of the batch, if the commit fails the batch goes back to the
+     * pending operations, so it's retried by the next commit.
+     */
+    private void commit(List<Runnable> batch, int operations) {
+        final long start = System.nanoTime();
+        DefaultSessionsStore sessionsStore = m_sessionsStore;
+        //taken before the commit, so the removal of their references is in it
+        List<String> unreferenced = sessionsStore == null ? Collections.<String>emptyList()
+                : sessionsStore.takeUnreferenced();
+        try {
+            SegmentedMessagesStore messagesStore = m_messagesStore;
+            if (messagesStore != null) {
+                messagesStore.flush();
+            }
+            m_db.commit();
+        } catch (RuntimeException ex) {
+            m_failures.incrementAndGet();
+            LOG.error("Commit of {} operations failed", operations, ex);
+            if (sessionsStore != null) {
+                sessionsStore.restoreUnreferenced(unreferenced);
+            }
+            if (m_mode == CommitMode.SYNC) {
+                throw ex;
+            }
+            synchronized (m_lock) {
+                if (!hasPending()) {
+                    m_oldestPending = System.currentTimeMillis();
+                }
+                m_pendingOperations += operations;
+                m_pending.addAll(0, batch);
+            }
+            return;
+        }
+        if (sessionsStore != null) {
+            sessionsStore.removeUnreferenced(unreferenced);
+        }
+        final long latency = System.nanoTime() - start;
+        m_lastCommit = System.currentTimeMillis();
+        m_commits.incrementAndGet();
+        m_operations.addAndGet(operations);
+        m_totalLatency.addAndGet(latency);
+        updateMax(m_maxLatency, latency);
+        updateMax(m_largestBatch, operations);
+
+        for (Runnable callback : batch) {
+            try {
+                callback.run();
+            } catch (RuntimeException ex) {
+                LOG.error("Callback of a committed operation failed", ex);
+            }
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public CommitStats stats() {
+        return new CommitStats(m_commits.get(), m_operations.get(), m_failures.get(), m_largestBatch.get(),
+                m_totalLatency.get(), m_maxLatency.get());
+    }
+
+    /**
+     * Commit the pending operations and stop the committing thread.
+     */
+    public void close() {
+        synchronized (m_lock) {
+            m_running = false;
+            m_lock.notify();
+        }
+        if (m_committer != null) {
+            try {
+                m_committer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            List<Runnable> batch;
+            int operations;
+            synchronized (m_lock) {
+                batch = takePending();
+                operations = m_pendingOperations;
+                m_pendingOperations = 0;
+            }
+            if (operations > 0 || !batch.isEmpty()) {
+                commit(batch, operations);
+            }
+        }
+    }
+}
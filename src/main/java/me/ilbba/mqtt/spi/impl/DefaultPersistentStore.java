@@ -16,19 +16,21 @@
 
 package me.ilbba.mqtt.spi.impl;
 
+import me.ilbba.mqtt.Const;
 import me.ilbba.mqtt.spi.iface.IMessagesStore;
 import me.ilbba.mqtt.spi.iface.ISessionsStore;
+import me.ilbba.mqtt.util.Prop;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 /**
  * MapDB main persistence implementation
@@ -47,33 +49,126 @@ public class DefaultPersistentStore {
         }
     }
 
+    /**
+     * MapDB serializer of the sessions, in place of the java serialization. The layout is
+     * [version][flags], with the clean session flag.
+     */
+    public static final class PersistentSessionSerializer implements Serializer<PersistentSession>, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        public static final PersistentSessionSerializer INSTANCE = new PersistentSessionSerializer();
+
+        private static final int VERSION = 1;
+        private static final int FLAG_CLEAN_SESSION = 0x01;
+
+        private static final PersistentSession CLEAN = new PersistentSession(true);
+        private static final PersistentSession NOT_CLEAN = new PersistentSession(false);
+
+        @Override
+        public void serialize(DataOutput out, PersistentSession value) throws IOException {
+            out.writeByte(VERSION);
+            out.writeByte(value.cleanSession ? FLAG_CLEAN_SESSION : 0);
+        }
+
+        @Override
+        public PersistentSession deserialize(DataInput in, int available) throws IOException {
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unknown version " + version + " of a session");
+            }
+            //immutable, so shared
+            return (in.readUnsignedByte() & FLAG_CLEAN_SESSION) != 0 ? CLEAN : NOT_CLEAN;
+        }
+
+        @Override
+        public int fixedSize() {
+            return 2;
+        }
+
+        private Object readResolve() {
+            return INSTANCE;
+        }
+    }
+
     private static final Logger LOG = LoggerFactory.getLogger(DefaultPersistentStore.class);
 
+    private static final int DEFAULT_ASYNC_COMMIT_INTERVAL = 30000;
+    private static final int DEFAULT_GROUP_COMMIT_INTERVAL = 5;
+    private static final int DEFAULT_COMMIT_BATCH_SIZE = 256;
+
     private DB m_db;
     private final String m_storePath;
-    private final int m_autosaveInterval; // in seconds
-
-    protected final ScheduledExecutorService m_scheduler = Executors.newScheduledThreadPool(1);
-
+    private final CommitMode m_commitMode;
+    private final long m_commitInterval; // in milliseconds
+    private final int m_commitBatchSize;
+    private final int m_maxQueueDepth;
+    private final OfflineQueueOverflowPolicy m_overflowPolicy;
+    private final String m_messagesPath;
+    private final int m_segmentSize;
+    private final long m_flushInterval; // in milliseconds
+    private SegmentedMessagesStore m_messagesStore;
+    private CommitPipeline m_commits;
 
     public DefaultPersistentStore() {
         this.m_storePath = System.getProperty("user.dir") + File.separator + "persistent_store";
-        this.m_autosaveInterval = 30;
+        this.m_commitMode = CommitMode.ASYNC;
+        this.m_commitInterval = DEFAULT_ASYNC_COMMIT_INTERVAL;
+        this.m_commitBatchSize = DEFAULT_COMMIT_BATCH_SIZE;
+        this.m_maxQueueDepth = 0;
+        this.m_overflowPolicy = OfflineQueueOverflowPolicy.DROP_OLDEST;
+        this.m_messagesPath = System.getProperty("user.dir") + File.separator + "messages_log";
+        this.m_segmentSize = SegmentedMessagesStore.DEFAULT_SEGMENT_SIZE;
+        this.m_flushInterval = SegmentedMessagesStore.DEFAULT_FLUSH_INTERVAL;
+    }
+
+    /**
+     * Configure the offline queues of the sessions with the properties
+     * {@link Const#OFFLINE_QUEUE_MAX_DEPTH_PROPERTY_NAME} (0 is unbounded) and
+     * {@link Const#OFFLINE_QUEUE_OVERFLOW_POLICY_PROPERTY_NAME}, and the messages log with
+     * {@link Const#MESSAGES_STORE_PATH_PROPERTY_NAME}, {@link Const#MESSAGES_SEGMENT_SIZE_PROPERTY_NAME}
+     * (in bytes) and {@link Const#MESSAGES_FLUSH_INTERVAL_PROPERTY_NAME} (in milliseconds).
+     * The commits follow {@link Const#COMMIT_MODE_PROPERTY_NAME}, with
+     * {@link Const#COMMIT_INTERVAL_PROPERTY_NAME} (in milliseconds) and
+     * {@link Const#COMMIT_BATCH_SIZE_PROPERTY_NAME}, see {@link CommitPipeline}.
+     */
+    public DefaultPersistentStore(Prop props) {
+        this.m_storePath = System.getProperty("user.dir") + File.separator + "persistent_store";
+        this.m_commitMode = CommitMode.parse(props.get(Const.COMMIT_MODE_PROPERTY_NAME), CommitMode.ASYNC);
+        this.m_commitInterval = props.getInt(Const.COMMIT_INTERVAL_PROPERTY_NAME, m_commitMode == CommitMode.ASYNC
+                ? DEFAULT_ASYNC_COMMIT_INTERVAL : DEFAULT_GROUP_COMMIT_INTERVAL);
+        this.m_commitBatchSize = props.getInt(Const.COMMIT_BATCH_SIZE_PROPERTY_NAME, DEFAULT_COMMIT_BATCH_SIZE);
+        this.m_maxQueueDepth = props.getInt(Const.OFFLINE_QUEUE_MAX_DEPTH_PROPERTY_NAME, 0);
+        this.m_overflowPolicy = OfflineQueueOverflowPolicy.parse(
+                props.get(Const.OFFLINE_QUEUE_OVERFLOW_POLICY_PROPERTY_NAME), OfflineQueueOverflowPolicy.DROP_OLDEST);
+        String messagesPath = props.get(Const.MESSAGES_STORE_PATH_PROPERTY_NAME);
+        this.m_messagesPath = messagesPath == null || messagesPath.trim().isEmpty()
+                ? System.getProperty("user.dir") + File.separator + "messages_log" : messagesPath;
+        this.m_segmentSize = props.getInt(Const.MESSAGES_SEGMENT_SIZE_PROPERTY_NAME,
+                SegmentedMessagesStore.DEFAULT_SEGMENT_SIZE);
+        this.m_flushInterval = props.getInt(Const.MESSAGES_FLUSH_INTERVAL_PROPERTY_NAME,
+                (int) SegmentedMessagesStore.DEFAULT_FLUSH_INTERVAL);
     }
 
     /**
-     * Factory method to create message store backed by MapDB
+     * Factory method to create message store backed by a segmented log, the retained index is
+     * kept in MapDB.
      */
-//    public IMessagesStore messagesStore() {
-//        //TODO check m_db is valid and
-//        IMessagesStore msgStore = new MapDBMessagesStore(m_db);
-//        msgStore.initStore();
-//        return msgStore;
-//    }
+    public IMessagesStore messagesStore() {
+        SegmentedMessagesStore msgStore = new SegmentedMessagesStore(new File(m_messagesPath),
+                m_db.<String, String>getHashMap("retained"), m_segmentSize, m_flushInterval);
+        msgStore.initStore();
+        m_messagesStore = msgStore;
+        m_commits.setMessagesStore(msgStore);
+        msgStore.setCommits(m_commits);
+        return msgStore;
+    }
 
     public ISessionsStore sessionsStore(IMessagesStore msgStore) {
-        ISessionsStore sessionsStore = new DefaultSessionsStore(m_db, msgStore);
+        DefaultSessionsStore sessionsStore = new DefaultSessionsStore(m_db, msgStore, m_maxQueueDepth, m_overflowPolicy);
         sessionsStore.initStore();
+        m_commits.setSessionsStore(sessionsStore);
+        sessionsStore.setCommits(m_commits);
         return sessionsStore;
     }
 
@@ -92,12 +187,16 @@ public class DefaultPersistentStore {
             }
             m_db = DBMaker.newFileDB(tmpFile).make();
         }
-        m_scheduler.scheduleWithFixedDelay(new Runnable() {
-            @Override
-            public void run() {
-                m_db.commit();
-            }
-        }, this.m_autosaveInterval, this.m_autosaveInterval, TimeUnit.SECONDS);
+        m_commits = new CommitPipeline(m_db, m_commitMode, m_commitInterval, m_commitBatchSize);
+        m_commits.start();
+        LOG.info("Committing in {} mode", m_commitMode);
+    }
+
+    /**
+     * The pipeline to report the operations done on the stores, to know when they are durable.
+     */
+    public CommitPipeline commits() {
+        return m_commits;
     }
 
     public void close() {
@@ -105,12 +204,15 @@ public class DefaultPersistentStore {
             LOG.debug("already closed");
             return;
         }
+        this.m_commits.close();
+        LOG.debug("Commit pipeline is closed");
+        if (this.m_messagesStore != null) {
+            this.m_messagesStore.close();
+        }
         this.m_db.commit();
         //LOG.debug("persisted subscriptions {}", m_persistentSubscriptions);
         this.m_db.close();
         LOG.debug("closed disk storage");
-        this.m_scheduler.shutdown();
-        LOG.debug("Persistence commit scheduler is shutdown");
     }
 
     public static void main(String[] args) {
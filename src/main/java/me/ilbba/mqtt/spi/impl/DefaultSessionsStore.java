@@ -20,13 +20,19 @@ import com.google.common.collect.Maps;
 import me.ilbba.mqtt.spi.iface.IMessagesStore;
 import me.ilbba.mqtt.spi.iface.ISessionsStore;
 import me.ilbba.mqtt.spi.subscription.Subscription;
+import me.ilbba.mqtt.spi.subscription.SubscriptionSerializer;
 import me.ilbba.mqtt.util.MapUtils;
+import org.mapdb.BTreeKeySerializer;
 import org.mapdb.DB;
+import org.mapdb.Fun;
+import org.mapdb.Serializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
 
 /**
  * ISessionsStore implementation backed by MapDB.
@@ -37,72 +43,339 @@ class DefaultSessionsStore implements ISessionsStore {
 
     private static final Logger logger = LoggerFactory.getLogger(DefaultSessionsStore.class);
 
+    //prefixes of the maps of the old layout, one for every client
+    private static final String LEGACY_SUBSCRIPTIONS_PREFIX = "subscriptions_";
+    private static final String LEGACY_GUIDS_MAPPING_PREFIX = "guidsMapping_";
+    //prefix of the copy of a map being rewritten with its serializer
+    private static final String MIGRATING_PREFIX = "migrating.";
+
     //maps clientID->[MessageId -> guid]
     private ConcurrentMap<String, Map<Integer, String>> m_inflightStore;
-    //map clientID <-> set of currently in flight packet identifiers
-    private Map<String, Set<Integer>> m_inFlightIds;
+    //map clientID <-> packet identifiers in use, in memory only: rebuilt from the inflight and
+    //the second phase stores at the first use after a restart
+    private final ConcurrentMap<String, PacketIdAllocator> m_packetIds = new ConcurrentHashMap<String, PacketIdAllocator>();
     private ConcurrentMap<String, DefaultPersistentStore.PersistentSession> m_persistentSessions;
-    //maps clientID->[guid*], insertion order cares, it's queue
-    private ConcurrentMap<String, List<String>> m_enqueuedStore;
+    //maps (clientID, sequence)->guid, the queue of the messages to deliver to the client
+    private ConcurrentNavigableMap<Fun.Tuple2<String, Long>, String> m_enqueuedStore;
+    //bounds of the queues in use, loaded from the keys of m_enqueuedStore at the first use
+    private final ConcurrentMap<String, QueueBounds> m_queues = new ConcurrentHashMap<String, QueueBounds>();
     //maps clientID->[messageID*]
     private ConcurrentMap<String, Set<Integer>> m_secondPhaseStore;
+    //maps (clientID, topicFilter)->subscription, sorted so the subscriptions of a client are a range
+    private ConcurrentNavigableMap<Fun.Tuple2<String, String>, Subscription> m_subscriptions;
+    //maps (clientID, messageID)->guid
+    private ConcurrentNavigableMap<Fun.Tuple2<String, Integer>, String> m_guidsMapping;
 
     private final DB m_db;
     private final IMessagesStore m_messagesStore;
+    //max number of messages queued for a client, 0 if unbounded
+    private final int m_maxQueueDepth;
+    private final OfflineQueueOverflowPolicy m_overflowPolicy;
+    //references of the queues and of the in flight windows to the stored messages
+    private final MessageReferences m_references = new MessageReferences();
+    //the pipeline the changes are reported to, null if not committed by one
+    private volatile CommitPipeline m_commits;
+
+    /**
+     * Sequences of the first queued message and of the next one of a client queue, plus the
+     * sequence of every queued guid, so a message acked out of order is removed without a scan
+     * of the queue. A guid is queued at most once for a client.
+     * Guarded by itself, discarded when the queue is empty.
+     */
+    private static final class QueueBounds {
+        long head;
+        long tail;
+        int size;
+        boolean discarded;
+        final Map<String, Long> sequences = new HashMap<String, Long>();
+    }
 
     DefaultSessionsStore(DB db, IMessagesStore messagesStore) {
+        this(db, messagesStore, 0, OfflineQueueOverflowPolicy.DROP_OLDEST);
+    }
+
+    DefaultSessionsStore(DB db, IMessagesStore messagesStore, int maxQueueDepth,
+                         OfflineQueueOverflowPolicy overflowPolicy) {
         m_db = db;
         m_messagesStore = messagesStore;
+        m_maxQueueDepth = maxQueueDepth;
+        m_overflowPolicy = overflowPolicy;
     }
 
     @Override
     public void initStore() {
         m_inflightStore = m_db.getHashMap("inflight");
-        m_inFlightIds = m_db.getHashMap("inflightPacketIDs");
-        m_persistentSessions = m_db.getHashMap("sessions");
-        m_enqueuedStore = m_db.getHashMap("sessionQueue");
+        m_persistentSessions = openSessions();
+        m_enqueuedStore = m_db.createTreeMap("offlineQueues").keySerializer(BTreeKeySerializer.TUPLE2).makeOrGet();
         m_secondPhaseStore = m_db.getHashMap("secondPhase");
+        m_subscriptions = openSubscriptions();
+        m_guidsMapping = m_db.createTreeMap("guidsMapping").keySerializer(BTreeKeySerializer.TUPLE2).makeOrGet();
+        migrateLegacyMaps();
+        migrateLegacyQueues();
+        if (m_db.exists("inflightPacketIDs")) {
+            //replaced by the in memory allocators
+            m_db.delete("inflightPacketIDs");
+        }
+        recoverReferences();
+    }
+
+    /**
+     * Rebuild the counts of the references to the stored messages from the committed queues
+     * and in flight windows, and remove the stored messages left without references by a crash.
+     * The legacy guids mappings are not references, nothing would ever release them.
+     */
+    private void recoverReferences() {
+        final long start = System.currentTimeMillis();
+        for (String guid : m_enqueuedStore.values()) {
+            m_references.retain(guid, 1);
+        }
+        for (Map<Integer, String> inflight : m_inflightStore.values()) {
+            for (String guid : inflight.values()) {
+                m_references.retain(guid, 1);
+            }
+        }
+        if (m_messagesStore != null) {
+            m_messagesStore.dropUnreferenced(m_references.referenced());
+        }
+        logger.info("Recovered the references to {} stored messages in {} ms", m_references.referenced().size(),
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * The pipeline to report every change to, once done and out of the locks of the store, as
+     * in {@link CommitMode#SYNC} mode the report commits.
+     */
+    void setCommits(CommitPipeline commits) {
+        m_commits = commits;
+    }
+
+    private void operation() {
+        CommitPipeline commits = m_commits;
+        if (commits != null) {
+            commits.operation();
+        }
+    }
+
+    /**
+     * @return the guids left without references since the last call, to remove after the
+     * commit of the removal of their references.
+     */
+    List<String> takeUnreferenced() {
+        return m_references.takeUnreferenced();
+    }
+
+    /**
+     * Queue again the guids taken, because the commit failed.
+     */
+    void restoreUnreferenced(List<String> guids) {
+        m_references.restoreUnreferenced(guids);
+    }
+
+    /**
+     * Remove from the messages store the messages without references, skipping the ones
+     * referenced again in the meantime.
+     */
+    void removeUnreferenced(List<String> guids) {
+        if (m_messagesStore == null) {
+            return;
+        }
+        for (String guid : guids) {
+            if (!m_references.isReferenced(guid)) {
+                m_messagesStore.removeStoredMessage(guid);
+            }
+        }
+    }
+
+    /**
+     * @return the sessions map, rewritten with the binary serializer if it was written with
+     * the java serialization by the previous versions.
+     */
+    private ConcurrentMap<String, DefaultPersistentStore.PersistentSession> openSessions() {
+        final String name = "sessions";
+        Serializer<DefaultPersistentStore.PersistentSession> serializer =
+                DefaultPersistentStore.PersistentSessionSerializer.INSTANCE;
+        if (!needsSerializerMigration(name, serializer)) {
+            return m_db.createHashMap(name).valueSerializer(serializer).makeOrGet();
+        }
+        ConcurrentMap<String, DefaultPersistentStore.PersistentSession> migrating =
+                m_db.createHashMap(MIGRATING_PREFIX + name).valueSerializer(serializer).make();
+        migrating.putAll(m_db.<String, DefaultPersistentStore.PersistentSession>getHashMap(name));
+        completeSerializerMigration(name, migrating.size());
+        return m_db.getHashMap(name);
+    }
+
+    /**
+     * @return the subscriptions map, rewritten with the binary serializer if it was written
+     * with the java serialization by the previous versions.
+     */
+    private ConcurrentNavigableMap<Fun.Tuple2<String, String>, Subscription> openSubscriptions() {
+        final String name = "subscriptions";
+        if (!needsSerializerMigration(name, SubscriptionSerializer.INSTANCE)) {
+            return m_db.createTreeMap(name).keySerializer(BTreeKeySerializer.TUPLE2)
+                    .valueSerializer(SubscriptionSerializer.INSTANCE).makeOrGet();
+        }
+        ConcurrentNavigableMap<Fun.Tuple2<String, String>, Subscription> migrating =
+                m_db.createTreeMap(MIGRATING_PREFIX + name).keySerializer(BTreeKeySerializer.TUPLE2)
+                        .valueSerializer(SubscriptionSerializer.INSTANCE).make();
+        migrating.putAll(m_db.<Fun.Tuple2<String, String>, Subscription>getTreeMap(name));
+        completeSerializerMigration(name, migrating.size());
+        return m_db.getTreeMap(name);
+    }
+
+    /**
+     * @return true if the map exists and was written with another serializer, the default one
+     * is not recorded in the catalog.
+     */
+    private boolean needsSerializerMigration(String name, Serializer<?> serializer) {
+        if (!m_db.exists(name)) {
+            return false;
+        }
+        Object current = m_db.getCatalog().get(name + ".valueSerializer");
+        return current == null || current.getClass() != serializer.getClass();
+    }
+
+    /**
+     * Replace the map with its rewritten copy, in a single commit so an interrupted migration
+     * is rolled back and done again at the next start.
+     */
+    private void completeSerializerMigration(String name, int migrated) {
+        m_db.delete(name);
+        m_db.rename(MIGRATING_PREFIX + name, name);
+        m_db.commit();
+        logger.info("Migrated {} entries of {} to the binary serializer", migrated, name);
+    }
+
+    /**
+     * Move the content of the per client maps of the old layout, subscriptions_{clientID} and
+     * guidsMapping_{clientID}, to the maps keyed by (clientID, key), dropping the old ones.
+     */
+    private void migrateLegacyMaps() {
+        List<String> subscriptionsMaps = legacyMapNames(LEGACY_SUBSCRIPTIONS_PREFIX);
+        List<String> guidsMaps = legacyMapNames(LEGACY_GUIDS_MAPPING_PREFIX);
+        if (subscriptionsMaps.isEmpty() && guidsMaps.isEmpty()) {
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        int migrated = 0;
+        for (String mapName : subscriptionsMaps) {
+            String clientID = mapName.substring(LEGACY_SUBSCRIPTIONS_PREFIX.length());
+            Map<String, Subscription> clientSubscriptions = m_db.getHashMap(mapName);
+            for (Map.Entry<String, Subscription> entry : clientSubscriptions.entrySet()) {
+                m_subscriptions.put(Fun.t2(clientID, entry.getKey()), entry.getValue());
+                migrated++;
+            }
+            m_db.delete(mapName);
+        }
+        for (String mapName : guidsMaps) {
+            String clientID = mapName.substring(LEGACY_GUIDS_MAPPING_PREFIX.length());
+            Map<Integer, String> messageIdToGuid = m_db.getHashMap(mapName);
+            for (Map.Entry<Integer, String> entry : messageIdToGuid.entrySet()) {
+                m_guidsMapping.put(Fun.t2(clientID, entry.getKey()), entry.getValue());
+                migrated++;
+            }
+            m_db.delete(mapName);
+        }
+        m_db.commit();
+        logger.info("Migrated {} entries of {} per client maps in {} ms", migrated,
+                subscriptionsMaps.size() + guidsMaps.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Move the guids of the lists of the old sessionQueue map to the sequenced queues.
+     */
+    private void migrateLegacyQueues() {
+        if (!m_db.exists("sessionQueue")) {
+            return;
+        }
+        Map<String, List<String>> legacyQueues = m_db.getHashMap("sessionQueue");
+        int migrated = 0;
+        for (Map.Entry<String, List<String>> entry : legacyQueues.entrySet()) {
+            long sequence = 0;
+            for (String guid : entry.getValue()) {
+                m_enqueuedStore.put(Fun.t2(entry.getKey(), sequence++), guid);
+                migrated++;
+            }
+        }
+        m_db.delete("sessionQueue");
+        m_db.commit();
+        logger.info("Migrated {} queued messages to the offline queues", migrated);
+    }
+
+    /**
+     * @return the names of the collections starting with prefix, read from the catalog
+     * without instantiating them.
+     */
+    private List<String> legacyMapNames(String prefix) {
+        List<String> names = Lists.newArrayList();
+        for (String key : m_db.getCatalog().subMap(prefix, prefix + Character.MAX_VALUE).keySet()) {
+            if (key.endsWith(".type")) {
+                names.add(key.substring(0, key.length() - ".type".length()));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return the view of the offline queue of the client, a range of the sorted keys.
+     */
+    @SuppressWarnings("unchecked")
+    private ConcurrentNavigableMap<Fun.Tuple2<String, Long>, String> clientQueue(String clientID) {
+        Fun.Tuple2<String, Long> highest = (Fun.Tuple2) Fun.t2(clientID, Fun.HI);
+        return m_enqueuedStore.subMap(Fun.t2(clientID, (Long) null), true, highest, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ConcurrentNavigableMap<Fun.Tuple2<String, String>, Subscription> clientSubscriptions(String clientID) {
+        //null and HI are the lowest and the highest topic filter
+        Fun.Tuple2<String, String> highest = (Fun.Tuple2) Fun.t2(clientID, Fun.HI);
+        return m_subscriptions.subMap(Fun.t2(clientID, (String) null), true, highest, true);
     }
 
     @Override
     public void addNewSubscription(Subscription newSubscription) {
         logger.debug("addNewSubscription invoked with subscription {}", newSubscription);
         final String clientID = newSubscription.getClientId();
-        m_db.getHashMap("subscriptions_" + clientID).put(newSubscription.getTopicFilter(), newSubscription);
+        m_subscriptions.put(Fun.t2(clientID, newSubscription.getTopicFilter()), newSubscription);
+        operation();
 
         if (logger.isTraceEnabled()) {
-            logger.trace("subscriptions_{}: {}", clientID, m_db.getHashMap("subscriptions_" + clientID));
+            logger.trace("subscriptions of {}: {}", clientID, clientSubscriptions(clientID));
         }
     }
 
     @Override
     public void removeSubscription(String topicFilter, String clientID) {
         logger.debug("removeSubscription topic filter: {} for clientID: {}", topicFilter, clientID);
-        if (!m_db.exists("subscriptions_" + clientID)) {
-            return;
-        }
-        m_db.getHashMap("subscriptions_" + clientID).remove(topicFilter);
+        m_subscriptions.remove(Fun.t2(clientID, topicFilter));
+        operation();
     }
 
     @Override
     public void wipeSubscriptions(String clientID) {
         logger.debug("wipeSubscriptions");
         if (logger.isTraceEnabled()) {
-            logger.trace("Subscription pre wipe: subscriptions_{}: {}", clientID, m_db.getHashMap("subscriptions_" + clientID));
+            logger.trace("Subscription pre wipe: subscriptions of {}: {}", clientID, clientSubscriptions(clientID));
         }
-        m_db.delete("subscriptions_" + clientID);
+        clientSubscriptions(clientID).clear();
+        operation();
         if (logger.isTraceEnabled()) {
-            logger.trace("Subscription post wipe: subscriptions_{}: {}", clientID, m_db.getHashMap("subscriptions_" + clientID));
+            logger.trace("Subscription post wipe: subscriptions of {}: {}", clientID, clientSubscriptions(clientID));
         }
     }
 
     @Override
     public List<ClientTopicCouple> listAllSubscriptions() {
         final List<ClientTopicCouple> allSubscriptions = Lists.newArrayList();
-        for (String clientID : m_persistentSessions.keySet()) {
-            ConcurrentMap<String, Subscription> clientSubscriptions = m_db.getHashMap("subscriptions_" + clientID);
-            for (String topicFilter : clientSubscriptions.keySet()) {
-                allSubscriptions.add(new ClientTopicCouple(clientID, topicFilter));
+        //the keys are sorted by client, so every session is looked up once
+        String lastClientID = null;
+        boolean hasSession = false;
+        for (Fun.Tuple2<String, String> key : m_subscriptions.keySet()) {
+            if (!key.a.equals(lastClientID)) {
+                lastClientID = key.a;
+                hasSession = m_persistentSessions.containsKey(lastClientID);
+            }
+            if (hasSession) {
+                allSubscriptions.add(new ClientTopicCouple(key.a, key.b));
             }
         }
         logger.debug("retrieveAllSubscriptions returning subs {}", allSubscriptions);
@@ -111,14 +384,12 @@ class DefaultSessionsStore implements ISessionsStore {
 
     @Override
     public Subscription getSubscription(ClientTopicCouple couple) {
-        ConcurrentMap<String, Subscription> clientSubscriptions = m_db.getHashMap("subscriptions_" + couple.clientID);
-        logger.debug("subscriptions_{}: {}", couple.clientID, clientSubscriptions);
-        return clientSubscriptions.get(couple.topicFilter);
+        return m_subscriptions.get(Fun.t2(couple.clientID, couple.topicFilter));
     }
 
     @Override
     public boolean contains(String clientID) {
-        return m_db.exists("subscriptions_" + clientID);
+        return !clientSubscriptions(clientID).isEmpty();
     }
 
 //    @Override
@@ -146,6 +417,7 @@ class DefaultSessionsStore implements ISessionsStore {
     @Override
     public void updateCleanStatus(String clientID, boolean cleanSession) {
         m_persistentSessions.put(clientID, new DefaultPersistentStore.PersistentSession(cleanSession));
+        operation();
     }
 
     /**
@@ -153,20 +425,47 @@ class DefaultSessionsStore implements ISessionsStore {
      */
     @Override
     public int nextPacketID(String clientID) {
-        Set<Integer> inFlightForClient = this.m_inFlightIds.get(clientID);
-        if (inFlightForClient == null) {
-            int nextPacketId = 1;
-            inFlightForClient = new HashSet<Integer>();
-            inFlightForClient.add(nextPacketId);
-            this.m_inFlightIds.put(clientID, inFlightForClient);
-            return nextPacketId;
+        PacketIdAllocator packetIds = packetIds(clientID);
+        synchronized (packetIds) {
+            return packetIds.allocate();
+        }
+    }
 
+    private PacketIdAllocator packetIds(String clientID) {
+        PacketIdAllocator packetIds = m_packetIds.get(clientID);
+        if (packetIds != null) {
+            return packetIds;
+        }
+        PacketIdAllocator newPacketIds = new PacketIdAllocator();
+        int maxId = 0;
+        Map<Integer, String> inflight = m_inflightStore.get(clientID);
+        if (inflight != null) {
+            for (Integer messageID : inflight.keySet()) {
+                newPacketIds.mark(messageID);
+                maxId = Math.max(maxId, messageID);
+            }
+        }
+        Set<Integer> secondPhase = m_secondPhaseStore.get(clientID);
+        if (secondPhase != null) {
+            for (Integer messageID : secondPhase) {
+                newPacketIds.mark(messageID);
+                maxId = Math.max(maxId, messageID);
+            }
+        }
+        if (maxId > 0) {
+            newPacketIds.moveCursorAfter(maxId);
         }
+        packetIds = m_packetIds.putIfAbsent(clientID, newPacketIds);
+        return packetIds != null ? packetIds : newPacketIds;
+    }
 
-        int maxId = inFlightForClient.isEmpty() ? 0 : Collections.max(inFlightForClient);
-        int nextPacketId = (maxId + 1) % 0xFFFF;
-        inFlightForClient.add(nextPacketId);
-        return nextPacketId;
+    private void releasePacketID(String clientID, int messageID) {
+        PacketIdAllocator packetIds = m_packetIds.get(clientID);
+        if (packetIds != null) {
+            synchronized (packetIds) {
+                packetIds.release(messageID);
+            }
+        }
     }
 
     @Override
@@ -176,42 +475,207 @@ class DefaultSessionsStore implements ISessionsStore {
             logger.error("Can't find the inFlight record for client <{}>", clientID);
             return;
         }
-        m.remove(messageID);
-
-        //remove from the ids store
-        Set<Integer> inFlightForClient = this.m_inFlightIds.get(clientID);
-        if (inFlightForClient != null) {
-            inFlightForClient.remove(messageID);
+        String guid = m.remove(messageID);
+        if (guid == null) {
+            //already acknowledged or moved to the second phase, the identifier may be reused
+            return;
         }
+        //write back, the map is a copy deserialized from the store
+        this.m_inflightStore.put(clientID, m);
+
+        releasePacketID(clientID, messageID);
+        m_references.release(guid);
+        operation();
     }
 
     @Override
     public void inFlight(String clientID, int messageID, String guid) {
+        storeInFlight(clientID, messageID, guid);
+        operation();
+    }
+
+    private void storeInFlight(String clientID, int messageID, String guid) {
         Map<Integer, String> m = this.m_inflightStore.get(clientID);
         if (m == null) {
             m = Maps.newHashMap();
         }
-        m.put(messageID, guid);
+        m_references.retain(guid, 1);
+        String previous = m.put(messageID, guid);
         this.m_inflightStore.put(clientID, m);
+        if (previous != null) {
+            m_references.release(previous);
+        }
+    }
+
+    @Override
+    public void moveToInFlight(String clientID, int messageID, String guid) {
+        //retained by the in flight window before the queue releases it, so it's never unreferenced
+        storeInFlight(clientID, messageID, guid);
+        dequeue(clientID, guid);
+        operation();
     }
 
     @Override
     public void bindToDeliver(String guid, String clientID) {
-        List<String> guids = MapUtils.defaultGet(m_enqueuedStore, clientID, new ArrayList<String>());
-        guids.add(guid);
-        m_enqueuedStore.put(clientID, guids);
+        bindToDeliver(guid, Collections.singletonList(clientID));
+    }
+
+    @Override
+    public void bindToDeliver(String guid, Collection<String> clientIDs) {
+        //counted up front, so the first clients acking can't drop the message before it's bound to all
+        m_references.retain(guid, clientIDs.size());
+        for (String clientID : clientIDs) {
+            if (!enqueue(guid, clientID)) {
+                m_references.release(guid);
+            }
+        }
+        operation();
+    }
+
+    /**
+     * Append the guid to the queue of the client, applying the overflow policy if it's full.
+     *
+     * @return false if the guid was dropped.
+     */
+    private boolean enqueue(String guid, String clientID) {
+        while (true) {
+            QueueBounds queue = queueBounds(clientID);
+            synchronized (queue) {
+                if (queue.discarded) {
+                    continue;
+                }
+                if (m_maxQueueDepth > 0 && queue.size >= m_maxQueueDepth) {
+                    if (m_overflowPolicy == OfflineQueueOverflowPolicy.DROP_NEWEST) {
+                        logger.warn("The queue of client <{}> is full, dropped the message {}", clientID, guid);
+                        return false;
+                    }
+                    String dropped = m_enqueuedStore.remove(Fun.t2(clientID, queue.head));
+                    logger.warn("The queue of client <{}> is full, dropped the oldest message {}", clientID, dropped);
+                    queue.size--;
+                    advanceHead(clientID, queue);
+                    if (dropped != null) {
+                        queue.sequences.remove(dropped);
+                        m_references.release(dropped);
+                    }
+                }
+                m_enqueuedStore.put(Fun.t2(clientID, queue.tail), guid);
+                queue.sequences.put(guid, queue.tail);
+                if (queue.size == 0) {
+                    queue.head = queue.tail;
+                }
+                queue.tail++;
+                queue.size++;
+                return true;
+            }
+        }
     }
 
     @Override
     public Collection<String> enqueued(String clientID) {
-        return MapUtils.defaultGet(m_enqueuedStore, clientID, new ArrayList<String>());
+        return new ArrayList<String>(clientQueue(clientID).values());
     }
 
+    /**
+     * Remove the guid from the queue of the client, found by its sequence wherever it is.
+     */
     @Override
     public void removeEnqueued(String clientID, String guid) {
-        List<String> guids = MapUtils.defaultGet(m_enqueuedStore, clientID, new ArrayList<String>());
-        guids.remove(guid);
-        m_enqueuedStore.put(clientID, guids);
+        dequeue(clientID, guid);
+        operation();
+    }
+
+    private void dequeue(String clientID, String guid) {
+        while (true) {
+            QueueBounds queue = queueBounds(clientID);
+            synchronized (queue) {
+                if (queue.discarded) {
+                    continue;
+                }
+                if (queue.size == 0) {
+                    discard(clientID, queue);
+                    return;
+                }
+                Long sequence = queue.sequences.remove(guid);
+                if (sequence != null && m_enqueuedStore.remove(Fun.t2(clientID, sequence)) != null) {
+                    queue.size--;
+                    if (sequence == queue.head) {
+                        advanceHead(clientID, queue);
+                    }
+                    m_references.release(guid);
+                }
+                if (queue.size == 0) {
+                    discard(clientID, queue);
+                }
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void dropQueue(String clientID) {
+        while (true) {
+            QueueBounds queue = queueBounds(clientID);
+            synchronized (queue) {
+                if (queue.discarded) {
+                    continue;
+                }
+                ConcurrentNavigableMap<Fun.Tuple2<String, Long>, String> entries = clientQueue(clientID);
+                for (String guid : entries.values()) {
+                    m_references.release(guid);
+                }
+                entries.clear();
+                queue.sequences.clear();
+                queue.size = 0;
+                discard(clientID, queue);
+                break;
+            }
+        }
+        Map<Integer, String> inflight = m_inflightStore.remove(clientID);
+        if (inflight != null) {
+            for (String guid : inflight.values()) {
+                m_references.release(guid);
+            }
+        }
+        m_secondPhaseStore.remove(clientID);
+        //nothing is in use anymore, a new session rebuilds it
+        m_packetIds.remove(clientID);
+        operation();
+    }
+
+    /**
+     * Move the head of the queue to the first sequence still queued.
+     */
+    private void advanceHead(String clientID, QueueBounds queue) {
+        if (queue.size == 0) {
+            queue.head = queue.tail;
+            return;
+        }
+        Fun.Tuple2<String, Long> next = m_enqueuedStore.higherKey(Fun.t2(clientID, queue.head));
+        queue.head = next != null && next.a.equals(clientID) ? next.b : queue.tail;
+    }
+
+    private void discard(String clientID, QueueBounds queue) {
+        queue.discarded = true;
+        m_queues.remove(clientID, queue);
+    }
+
+    private QueueBounds queueBounds(String clientID) {
+        QueueBounds queue = m_queues.get(clientID);
+        if (queue != null) {
+            return queue;
+        }
+        QueueBounds newQueue = new QueueBounds();
+        ConcurrentNavigableMap<Fun.Tuple2<String, Long>, String> stored = clientQueue(clientID);
+        if (!stored.isEmpty()) {
+            newQueue.head = stored.firstKey().b;
+            newQueue.tail = stored.lastKey().b + 1;
+            for (Map.Entry<Fun.Tuple2<String, Long>, String> entry : stored.entrySet()) {
+                newQueue.sequences.put(entry.getValue(), entry.getKey().b);
+            }
+            newQueue.size = newQueue.sequences.size();
+        }
+        queue = m_queues.putIfAbsent(clientID, newQueue);
+        return queue != null ? queue : newQueue;
     }
 
     @Override
@@ -219,22 +683,36 @@ class DefaultSessionsStore implements ISessionsStore {
         Set<Integer> messageIDs = MapUtils.defaultGet(m_secondPhaseStore, clientID, new HashSet<Integer>());
         messageIDs.remove(messageID);
         m_secondPhaseStore.put(clientID, messageIDs);
+        releasePacketID(clientID, messageID);
+        operation();
     }
 
+    /**
+     * Move the message from the in flight window to the second phase, the identifier stays
+     * allocated till the PUBCOMP, so it's never free in between.
+     */
     @Override
     public void secondPhaseAckWaiting(String clientID, int messageID) {
+        PacketIdAllocator packetIds = packetIds(clientID);
+        synchronized (packetIds) {
+            //no-op if it's still allocated, as it's when the message was in flight
+            packetIds.mark(messageID);
+        }
         Set<Integer> messageIDs = MapUtils.defaultGet(m_secondPhaseStore, clientID, new HashSet<Integer>());
         messageIDs.add(messageID);
         m_secondPhaseStore.put(clientID, messageIDs);
+
+        Map<Integer, String> inflight = m_inflightStore.get(clientID);
+        String guid = inflight == null ? null : inflight.remove(messageID);
+        if (guid != null) {
+            this.m_inflightStore.put(clientID, inflight);
+            m_references.release(guid);
+        }
+        operation();
     }
 
     @Override
     public String mapToGuid(String clientID, int messageID) {
-        ConcurrentMap<Integer, String> messageIdToGuid = m_db.getHashMap(messageId2GuidsMapName(clientID));
-        return messageIdToGuid.get(messageID);
-    }
-
-    static String messageId2GuidsMapName(String clientID) {
-        return "guidsMapping_" + clientID;
+        return m_guidsMapping.get(Fun.t2(clientID, messageID));
     }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package me.ilbba.mqtt.spi.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts of the references to the stored messages held by the queues and the in flight windows
+ * of the sessions, so a message published to many clients is stored once. A message whose
+ * count drops to 0 is queued as unreferenced, to be removed from the store once the removal
+ * of its last reference is committed.
+ *
+ * The counts are not persisted, they are rebuilt from the references at the start, so they
+ * are always consistent with the committed state.
+ */
+final class MessageReferences {
+
+    //guid -> count, a counter at 0 is being dropped and is never incremented again
+    private final ConcurrentMap<String, AtomicInteger> m_counts = new ConcurrentHashMap<String, AtomicInteger>();
+    private final Queue<String> m_unreferenced = new ConcurrentLinkedQueue<String>();
+
+    void retain(String guid, int references) {
+        if (references <= 0) {
+            if (!m_counts.containsKey(guid)) {
+                m_unreferenced.add(guid);
+            }
+            return;
+        }
+        while (true) {
+            AtomicInteger counter = m_counts.get(guid);
+            if (counter == null) {
+                counter = m_counts.putIfAbsent(guid, new AtomicInteger(references));
+                if (counter == null) {
+                    return;
+                }
+            }
+            int count = counter.get();
+            if (count == 0) {
+                //help the release dropping it, then start a new counter
+                m_counts.remove(guid, counter);
+            } else if (counter.compareAndSet(count, count + references)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return false if the guid had no references.
+     */
+    boolean release(String guid) {
+        AtomicInteger counter = m_counts.get(guid);
+        while (counter != null) {
+            int count = counter.get();
+            if (count == 0) {
+                return false;
+            }
+            if (counter.compareAndSet(count, count - 1)) {
+                if (count == 1) {
+                    m_counts.remove(guid, counter);
+                    m_unreferenced.add(guid);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean isReferenced(String guid) {
+        return m_counts.containsKey(guid);
+    }
+
+    int count(String guid) {
+        AtomicInteger counter = m_counts.get(guid);
+        return counter == null ? 0 : counter.get();
+    }
+
+    Set<String> referenced() {
+        return m_counts.keySet();
+    }
+
+    /**
+     * @return the guids left without references since the last call.
+     */
+    List<String> takeUnreferenced() {
+        List<String> guids = new ArrayList<String>();
+        String guid;
+        while ((guid = m_unreferenced.poll()) != null) {
+            guids.add(guid);
+        }
+        return guids;
+    }
+
+    /**
+     * Queue again the guids taken but not removed.
+     */
+    void restoreUnreferenced(Collection<String> guids) {
+        m_unreferenced.addAll(guids);
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package me.ilbba.mqtt.spi.impl;
+
+/**
+ * What to do when a message has to be queued for a client whose offline queue is full.
+ */
+public enum OfflineQueueOverflowPolicy {
+    /**
+     * Drop the oldest queued message to make room for the new one.
+     */
+    DROP_OLDEST,
+    /**
+     * Keep the queue as it is and drop the new message.
+     */
+    DROP_NEWEST;
+
+    /**
+     * @return the policy with the given name, case insensitive, or the default one if the
+     * name is null.
+     */
+    public static OfflineQueueOverflowPolicy parse(String name, OfflineQueueOverflowPolicy defaultPolicy) {
+        if (name == null || name.trim().isEmpty()) {
+            return defaultPolicy;
+        }
+        return valueOf(name.trim().toUpperCase());
+    }
+}
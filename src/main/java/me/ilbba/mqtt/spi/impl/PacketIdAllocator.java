@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package me.ilbba.mqtt.spi.impl;
+
+/**
+ * Packet identifiers in use by a client, as a bitmap of the 65535 valid ones plus a cursor
+ * that rotates over them, so the identifier just released is the last one to be reused.
+ *
+ * The bitmap is split in pages of 4096 identifiers allocated only when one of their
+ * identifiers is in use, so a client with a few messages in flight takes a few hundred bytes.
+ * Not thread safe, the instances are guarded by the sessions store.
+ */
+final class PacketIdAllocator {
+
+    static final int MAX_PACKET_ID = 0xFFFF;
+
+    private static final int PAGE_BITS = 12;
+    private static final int PAGES = (MAX_PACKET_ID + 1) >>> PAGE_BITS;
+    private static final int WORDS_PER_PAGE = (1 << PAGE_BITS) >>> 6;
+
+    private final long[][] m_pages = new long[PAGES][];
+    private final int[] m_pageUsage = new int[PAGES];
+    private int m_inUse;
+    //the next identifier to check
+    private int m_cursor = 1;
+
+    /**
+     * @return the first free identifier from the cursor on, marked in use.
+     * @throws IllegalStateException if all the identifiers are in use.
+     */
+    int allocate() {
+        if (m_inUse == MAX_PACKET_ID) {
+            throw new IllegalStateException("All the packet identifiers are in use");
+        }
+        int id = m_cursor;
+        while (true) {
+            long[] words = m_pages[id >>> PAGE_BITS];
+            long word = words == null ? 0L : words[(id >>> 6) & (WORDS_PER_PAGE - 1)];
+            //free bits of the word from the id on, 0 is not a valid identifier
+            long free = ~word & (-1L << (id & 63));
+            if (id < 64) {
+                free &= ~1L;
+            }
+            if (free != 0) {
+                id = (id & ~63) | Long.numberOfTrailingZeros(free);
+                mark(id);
+                m_cursor = id == MAX_PACKET_ID ? 1 : id + 1;
+                return id;
+            }
+            //next word, wrapping to the first one
+            id = (id | 63) + 1;
+            if (id > MAX_PACKET_ID) {
+                id = 1;
+            }
+        }
+    }
+
+    /**
+     * Mark the identifier in use, if not already.
+     *
+     * @return true if it was free.
+     */
+    boolean mark(int id) {
+        checkId(id);
+        final int page = id >>> PAGE_BITS;
+        long[] words = m_pages[page];
+        if (words == null) {
+            words = new long[WORDS_PER_PAGE];
+            m_pages[page] = words;
+        }
+        final int idx = (id >>> 6) & (WORDS_PER_PAGE - 1);
+        final long bit = 1L << (id & 63);
+        if ((words[idx] & bit) != 0) {
+            return false;
+        }
+        words[idx] |= bit;
+        m_pageUsage[page]++;
+        m_inUse++;
+        return true;
+    }
+
+    /**
+     * @return true if the identifier was in use.
+     */
+    boolean release(int id) {
+        checkId(id);
+        final int page = id >>> PAGE_BITS;
+        long[] words = m_pages[page];
+        final int idx = (id >>> 6) & (WORDS_PER_PAGE - 1);
+        final long bit = 1L << (id & 63);
+        if (words == null || (words[idx] & bit) == 0) {
+            return false;
+        }
+        words[idx] &= ~bit;
+        m_inUse--;
+        //keep the page of the cursor, the next allocations would recreate it
+        if (--m_pageUsage[page] == 0 && page != m_cursor >>> PAGE_BITS) {
+            m_pages[page] = null;
+        }
+        return true;
+    }
+
+    boolean isInUse(int id) {
+        long[] words = m_pages[id >>> PAGE_BITS];
+        return words != null && (words[(id >>> 6) & (WORDS_PER_PAGE - 1)] & (1L << (id & 63))) != 0;
+    }
+
+    int inUse() {
+        return m_inUse;
+    }
+
+    /**
+     * Continue the allocations after the given identifier.
+     */
+    void moveCursorAfter(int id) {
+        checkId(id);
+        m_cursor = id == MAX_PACKET_ID ? 1 : id + 1;
+    }
+
+    private static void checkId(int id) {
+        if (id < 1 || id > MAX_PACKET_ID) {
+            throw new IllegalArgumentException("Invalid packet identifier " + id);
+        }
+    }
+}
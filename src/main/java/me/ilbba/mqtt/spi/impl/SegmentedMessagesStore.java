@@ -0,0 +1,851 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package me.ilbba.mqtt.spi.impl;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.buffer.UnpooledDirectByteBuf;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import me.ilbba.mqtt.spi.iface.IMatchingCondition;
+import me.ilbba.mqtt.spi.iface.IMessagesStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * IMessagesStore on an append only log split in memory mapped segment files. A message is
+ * appended as it is, without serialization, and its guid is its offset in the log, so it's read
+ * back with a lookup of the segment and its payload is a view of the mapping, that keeps the
+ * segment mapped till the message is released.
+ *
+ * The removal of a message appends a tombstone, a removed message is not readable anymore. A
+ * segment is deleted by a background cleaner once it's not the active one and all of its
+ * messages are removed, its retained messages and its tombstones of messages still in the log
+ * are copied to the active segment. A retained message is an untracked copy of the stored one,
+ * garbage once the topic retains another message. The mappings are flushed to disk every flush interval and on close.
+ *
+ * Every record is [length][type][body][crc32 of type and body], with the length written last,
+ * the recovery of the log stops at the first record not complete. The records start at
+ * multiples of 8, so the messages not removed yet of a segment are a bitmap of the positions.
+ */
+public class SegmentedMessagesStore implements IMessagesStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentedMessagesStore.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000; // in milliseconds
+    private static final long CLEANER_INTERVAL = 10; // in seconds
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final byte RECORD_MESSAGE = 1;
+    private static final byte RECORD_REMOVED = 2;
+    //length, type and crc
+    private static final int RECORD_OVERHEAD = 4 + 1 + 4;
+    //the records start at multiples of it, the live ones are the bits of their position >>> 3
+    private static final int RECORD_ALIGNMENT = 8;
+
+    //the low bits hold the qos
+    private static final int FLAG_RETAINED = 0x04;
+    private static final int FLAG_MESSAGE_ID = 0x08;
+    private static final int FLAG_CLIENT_ID = 0x10;
+    //copy of a retained message, not tracked till its removal
+    private static final int FLAG_UNTRACKED = 0x20;
+
+    /**
+     * Segment file mapped in memory, the guid of its first byte is its base offset. The
+     * mapping is unmapped once the store and the payloads read from it released it.
+     */
+    private static final class Segment {
+        final long base;
+        final File file;
+        final MappedByteBuffer buffer;
+        //used only by the appender, holding the store lock
+        final ByteBuffer writer;
+        //position of the next record
+        volatile int writePosition;
+        volatile boolean dirty;
+        //the one of the store plus one for every payload view not released
+        private final AtomicInteger references = new AtomicInteger(1);
+        private final AtomicInteger mappedSegments;
+        //guarded by this: the position >>> 3 of the messages stored and not removed yet, their
+        //number and their number by clientID
+        private final BitSet live = new BitSet();
+        private int liveCount;
+        private final Map<String, Integer> clients = new HashMap<String, Integer>();
+
+        Segment(long base, File file, MappedByteBuffer buffer, AtomicInteger mappedSegments) {
+            this.base = base;
+            this.file = file;
+            this.buffer = buffer;
+            this.writer = buffer.duplicate();
+            this.mappedSegments = mappedSegments;
+            mappedSegments.incrementAndGet();
+        }
+
+        boolean contains(long offset) {
+            return offset >= base && offset < base + buffer.capacity();
+        }
+
+        synchronized void track(int position, String clientID) {
+            live.set(position >>> 3);
+            liveCount++;
+            if (clientID != null) {
+                Integer count = clients.get(clientID);
+                clients.put(clientID, count == null ? 1 : count + 1);
+            }
+        }
+
+        /**
+         * @return true if the message at position was tracked.
+         */
+        synchronized boolean untrack(int position) {
+            if (!isLive(position)) {
+                return false;
+            }
+            //read while it's live, so the segment can't be deleted
+            String clientID = recordClientID(buffer, position);
+            live.clear(position >>> 3);
+            liveCount--;
+            if (clientID != null) {
+                int count = clients.remove(clientID);
+                if (count > 1) {
+                    clients.put(clientID, count - 1);
+                }
+            }
+            return true;
+        }
+
+        synchronized boolean isLive(int position) {
+            return (position & (RECORD_ALIGNMENT - 1)) == 0 && live.get(position >>> 3);
+        }
+
+        synchronized int liveCount() {
+            return liveCount;
+        }
+
+        /**
+         * @return the positions of the live messages published by the client.
+         */
+        synchronized List<Integer> messagesOf(String clientID) {
+            if (!clients.containsKey(clientID)) {
+                return Collections.emptyList();
+            }
+            List<Integer> positions = new ArrayList<Integer>(clients.get(clientID));
+            for (int i = live.nextSetBit(0); i >= 0; i = live.nextSetBit(i + 1)) {
+                if (clientID.equals(recordClientID(buffer, i << 3))) {
+                    positions.add(i << 3);
+                }
+            }
+            return positions;
+        }
+
+        synchronized BitSet liveMessages() {
+            return (BitSet) live.clone();
+        }
+
+        /**
+         * @return false if the segment is already unmapped.
+         */
+        boolean tryRetain() {
+            while (true) {
+                int count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                unmap(buffer);
+                mappedSegments.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Payload of a message read from a segment, a view of the mapping that holds a reference
+     * of the segment till it's released.
+     */
+    private static final class SegmentView extends UnpooledDirectByteBuf {
+        private final Segment m_segment;
+
+        SegmentView(Segment segment, ByteBuffer view) {
+            super(UnpooledByteBufAllocator.DEFAULT, view, view.remaining());
+            m_segment = segment;
+        }
+
+        @Override
+        protected void deallocate() {
+            super.deallocate();
+            m_segment.release();
+        }
+    }
+
+    //Unsafe.invokeCleaner since Java 9, null before
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+        } catch (Exception ex) {
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final File m_directory;
+    private final int m_segmentSize;
+    private final long m_flushInterval;
+    //topic -> guid of the retained message
+    private final ConcurrentMap<String, String> m_retained;
+    //base offset -> segment
+    private final ConcurrentSkipListMap<Long, Segment> m_segments = new ConcurrentSkipListMap<Long, Segment>();
+    //guarded by this
+    private Segment m_active;
+    private final CRC32 m_crc = new CRC32();
+    //segments not unmapped yet, the deleted ones included till their payloads are released
+    private final AtomicInteger m_mappedSegments = new AtomicInteger();
+    //offsets of the copies of the retained messages, the values of m_retained
+    private final Set<Long> m_retainedOffsets = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private final ScheduledExecutorService m_scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("messages-store-%d").setDaemon(true).build());
+    //a flush returns only once the segments written before it are on disk
+    private final Object m_flushLock = new Object();
+    //the pipeline the changes are reported to, null if not committed by one
+    private volatile CommitPipeline m_commits;
+
+    /**
+     * @param retained the map topic -> guid of the retained messages, persisted by the caller.
+     */
+    public SegmentedMessagesStore(File directory, ConcurrentMap<String, String> retained, int segmentSize,
+                                  long flushInterval) {
+        m_directory = directory;
+        m_retained = retained;
+        m_segmentSize = segmentSize;
+        m_flushInterval = flushInterval;
+    }
+
+    @Override
+    public void initStore() {
+        if (!m_directory.isDirectory() && !m_directory.mkdirs()) {
+            throw new RuntimeException("Can't create the messages store directory " + m_directory);
+        }
+        final long start = System.currentTimeMillis();
+        File[] files = m_directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        try {
+            for (File file : files) {
+                long base = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+                m_segments.put(base, map(base, file, 0));
+            }
+            for (Segment segment : m_segments.values()) {
+                recover(segment);
+            }
+            synchronized (this) {
+                m_active = m_segments.isEmpty() ? newSegment(0, m_segmentSize) : m_segments.lastEntry().getValue();
+            }
+            for (String guid : m_retained.values()) {
+                Long offset = parseGuid(guid);
+                if (offset != null) {
+                    m_retainedOffsets.add(offset);
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Can't open the messages store " + m_directory, ex);
+        }
+        int messages = 0;
+        for (Segment segment : m_segments.values()) {
+            messages += segment.liveCount();
+        }
+        LOG.info("Recovered {} segments with {} messages in {} ms", m_segments.size(), messages,
+                System.currentTimeMillis() - start);
+
+        m_scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, m_flushInterval, m_flushInterval, TimeUnit.MILLISECONDS);
+        m_scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    clean();
+                } catch (RuntimeException ex) {
+                    LOG.error("Cleaning of the messages store failed", ex);
+                }
+            }
+        }, CLEANER_INTERVAL, CLEANER_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * The pipeline to report the stores and the drops of messages to. The removals are not
+     * reported, they are done by the pipeline after its commits.
+     */
+    void setCommits(CommitPipeline commits) {
+        m_commits = commits;
+    }
+
+    private void operation() {
+        CommitPipeline commits = m_commits;
+        if (commits != null) {
+            commits.operation();
+        }
+    }
+
+    private Segment map(long base, File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (size > 0) {
+                raf.setLength(size);
+            }
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            return new Segment(base, file, buffer, m_mappedSegments);
+        } finally {
+            //the mapping stays valid
+            raf.close();
+        }
+    }
+
+    private Segment newSegment(long base, int size) throws IOException {
+        File file = new File(m_directory, String.format("%020d%s", base, SEGMENT_SUFFIX));
+        Segment segment = map(base, file, size);
+        m_segments.put(base, segment);
+        return segment;
+    }
+
+    /**
+     * Rebuild the index of the messages not removed from the records of the segment.
+     */
+    private void recover(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + RECORD_OVERHEAD <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length < RECORD_OVERHEAD - 4 || position + 4 + length > buffer.capacity()
+                    || !hasValidCrc(buffer, position, length)) {
+                break;
+            }
+            byte type = buffer.get(position + 4);
+            if (type == RECORD_MESSAGE) {
+                if ((buffer.get(position + 5) & FLAG_UNTRACKED) == 0) {
+                    segment.track(position, recordClientID(buffer, position));
+                }
+            } else if (type == RECORD_REMOVED) {
+                untrack(buffer.getLong(position + 5));
+            }
+            position += align(4 + length);
+        }
+        segment.writePosition = position;
+    }
+
+    private boolean hasValidCrc(ByteBuffer buffer, int position, int length) {
+        ByteBuffer content = buffer.duplicate();
+        ((Buffer) content).position(position + 4);
+        ((Buffer) content).limit(position + length);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return (int) crc.getValue() == buffer.getInt(position + length);
+    }
+
+    @Override
+    public String storePublishForFuture(StoredMessage evt) {
+        long offset;
+        try {
+            offset = appendMessage(evt, true);
+        } finally {
+            //the payload is copied in the segment, the record is reclaimed with it once removed
+            evt.release();
+        }
+        String guid = Long.toString(offset);
+        evt.setGuid(guid);
+        operation();
+        return guid;
+    }
+
+    /**
+     * @param live if the message has to be tracked till its removal.
+     * @return the offset of the message.
+     */
+    private synchronized long appendMessage(StoredMessage evt, boolean live) {
+        byte[] topic = evt.getTopic().getBytes(StandardCharsets.UTF_8);
+        byte[] clientID = evt.getClientID() == null ? null : evt.getClientID().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = evt.getMessage();
+        int flags = evt.getQos().value() & 0x03;
+        if (evt.isRetained()) {
+            flags |= FLAG_RETAINED;
+        }
+        if (evt.getMessageID() != null) {
+            flags |= FLAG_MESSAGE_ID;
+        }
+        if (clientID != null) {
+            flags |= FLAG_CLIENT_ID;
+        }
+        if (!live) {
+            flags |= FLAG_UNTRACKED;
+        }
+        int bodySize = 1 + 4 + 2 + topic.length + (clientID == null ? 0 : 2 + clientID.length) + 4 + payload.remaining();
+
+        Segment segment = segmentFor(align(RECORD_OVERHEAD + bodySize));
+        ByteBuffer writer = startRecord(segment, RECORD_MESSAGE);
+        writer.put((byte) flags);
+        writer.putInt(evt.getMessageID() == null ? 0 : evt.getMessageID());
+        writer.putShort((short) topic.length);
+        writer.put(topic);
+        if (clientID != null) {
+            writer.putShort((short) clientID.length);
+            writer.put(clientID);
+        }
+        writer.putInt(payload.remaining());
+        writer.put(payload.duplicate());
+        long offset = endRecord(segment);
+        if (live) {
+            segment.track((int) (offset - segment.base), evt.getClientID());
+        }
+        return offset;
+    }
+
+    private synchronized void appendRemoved(long removedOffset) {
+        Segment segment = segmentFor(align(RECORD_OVERHEAD + 8));
+        ByteBuffer writer = startRecord(segment, RECORD_REMOVED);
+        writer.putLong(removedOffset);
+        endRecord(segment);
+    }
+
+    /**
+     * @return the active segment, rolled to a new one if the record doesn't fit.
+     */
+    private Segment segmentFor(int recordSize) {
+        Segment segment = m_active;
+        if (segment.writePosition + recordSize <= segment.buffer.capacity()) {
+            return segment;
+        }
+        try {
+            m_active = newSegment(segment.base + segment.buffer.capacity(), align(Math.max(m_segmentSize, recordSize)));
+        } catch (IOException ex) {
+            throw new RuntimeException("Can't create a new segment of the messages store", ex);
+        }
+        return m_active;
+    }
+
+    private static ByteBuffer startRecord(Segment segment, byte type) {
+        ByteBuffer writer = segment.writer;
+        ((Buffer) writer).position(segment.writePosition + 4);
+        writer.put(type);
+        return writer;
+    }
+
+    /**
+     * Append the crc and publish the record writing its length.
+     *
+     * @return the offset of the record.
+     */
+    private long endRecord(Segment segment) {
+        final int start = segment.writePosition;
+        ByteBuffer writer = segment.writer;
+        final int crcPosition = writer.position();
+        ByteBuffer content = segment.buffer.duplicate();
+        ((Buffer) content).position(start + 4);
+        ((Buffer) content).limit(crcPosition);
+        m_crc.reset();
+        m_crc.update(content);
+        writer.putInt((int) m_crc.getValue());
+        writer.putInt(start, writer.position() - start - 4);
+        segment.writePosition = align(writer.position());
+        segment.dirty = true;
+        return segment.base + start;
+    }
+
+    /**
+     * @return true if the message was tracked.
+     */
+    private boolean untrack(long offset) {
+        Map.Entry<Long, Segment> entry = m_segments.floorEntry(offset);
+        if (entry == null || !entry.getValue().contains(offset)) {
+            return false;
+        }
+        Segment segment = entry.getValue();
+        return segment.untrack((int) (offset - segment.base));
+    }
+
+    @Override
+    public void removeStoredMessage(String guid) {
+        Long offset = parseGuid(guid);
+        if (offset != null && untrack(offset)) {
+            appendRemoved(offset);
+        }
+    }
+
+    /**
+     * Scan the live messages of the segments where the client has some.
+     */
+    @Override
+    public void dropMessagesInSession(String clientID) {
+        int dropped = 0;
+        for (Segment segment : m_segments.values()) {
+            for (int position : segment.messagesOf(clientID)) {
+                if (segment.untrack(position)) {
+                    appendRemoved(segment.base + position);
+                    dropped++;
+                }
+            }
+        }
+        if (dropped > 0) {
+            operation();
+        }
+    }
+
+    @Override
+    public void dropUnreferenced(Set<String> referencedGuids) {
+        int dropped = 0;
+        for (Segment segment : m_segments.values()) {
+            BitSet live = segment.liveMessages();
+            for (int i = live.nextSetBit(0); i >= 0; i = live.nextSetBit(i + 1)) {
+                final int position = i << 3;
+                if (!referencedGuids.contains(Long.toString(segment.base + position)) && segment.untrack(position)) {
+                    appendRemoved(segment.base + position);
+                    dropped++;
+                }
+            }
+        }
+        LOG.info("Dropped {} stored messages without references", dropped);
+    }
+
+    @Override
+    public StoredMessage getMessageByGuid(String guid) {
+        Long offset = parseGuid(guid);
+        if (offset == null) {
+            return null;
+        }
+        Map.Entry<Long, Segment> entry = m_segments.floorEntry(offset);
+        if (entry == null || !entry.getValue().contains(offset)) {
+            return null;
+        }
+        Segment segment = entry.getValue();
+        final int position = (int) (offset - segment.base);
+        //taken over by the payload, the segment is deleted in the meantime if not live
+        if (!segment.tryRetain()) {
+            return null;
+        }
+        //only the offsets of the records of the messages not removed
+        if (!segment.isLive(position) && !m_retainedOffsets.contains(offset)) {
+            segment.release();
+            return null;
+        }
+
+        ByteBuffer reader = segment.buffer.duplicate();
+        ((Buffer) reader).position(position + 5);
+        byte flags = reader.get();
+        int messageID = reader.getInt();
+        String topic = readString(reader);
+        String clientID = (flags & FLAG_CLIENT_ID) != 0 ? readString(reader) : null;
+        int payloadLength = reader.getInt();
+        ((Buffer) reader).limit(reader.position() + payloadLength);
+
+        StoredMessage message = new StoredMessage(Unpooled.unmodifiableBuffer(new SegmentView(segment, reader.slice())),
+                MqttQoS.valueOf(flags & 0x03), topic);
+        message.setRetained((flags & FLAG_RETAINED) != 0);
+        message.setClientID(clientID);
+        if ((flags & FLAG_MESSAGE_ID) != 0) {
+            message.setMessageID(messageID);
+        }
+        message.setGuid(guid);
+        return message;
+    }
+
+    @Override
+    public List<StoredMessage> listMessagesInSession(Collection<String> guids) {
+        List<StoredMessage> messages = new ArrayList<StoredMessage>(guids.size());
+        for (String guid : guids) {
+            StoredMessage message = getMessageByGuid(guid);
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public void storeRetained(String topic, String guid) {
+        StoredMessage message = getMessageByGuid(guid);
+        if (message == null || !message.getMessage().hasRemaining()) {
+            if (message != null) {
+                message.release();
+            }
+            cleanRetained(topic);
+            return;
+        }
+        //a copy of its own, so the message is removed when delivered and the copy when replaced
+        long offset;
+        try {
+            offset = appendMessage(message, false);
+        } finally {
+            message.release();
+        }
+        m_retainedOffsets.add(offset);
+        forgetRetained(m_retained.put(topic, Long.toString(offset)));
+        operation();
+    }
+
+    private void forgetRetained(String guid) {
+        Long offset = guid == null ? null : parseGuid(guid);
+        if (offset != null) {
+            m_retainedOffsets.remove(offset);
+        }
+    }
+
+    @Override
+    public Collection<StoredMessage> searchMatching(IMatchingCondition condition) {
+        List<StoredMessage> results = new ArrayList<StoredMessage>();
+        for (Map.Entry<String, String> entry : m_retained.entrySet()) {
+            if (condition.match(entry.getKey())) {
+                StoredMessage message = getMessageByGuid(entry.getValue());
+                if (message != null) {
+                    results.add(message);
+                }
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public void cleanRetained(String topic) {
+        forgetRetained(m_retained.remove(topic));
+        operation();
+    }
+
+    /**
+     * Delete the segments without messages to deliver, copying their retained messages and
+     * the tombstones of the messages in the older segments to the active segment. The messages
+     * to deliver can't be moved, their guid is their offset, so a segment with a message still
+     * queued is kept, also if all the other records in it are garbage.
+     */
+    void clean() {
+        for (Segment segment : m_segments.values()) {
+            synchronized (this) {
+                if (segment == m_active) {
+                    return;
+                }
+            }
+            if (segment.liveCount() > 0 || !moveRetained(segment)) {
+                continue;
+            }
+            moveTombstones(segment);
+            m_segments.remove(segment.base);
+            if (!segment.file.delete()) {
+                LOG.warn("Can't delete the segment {} of the messages store", segment.file);
+            }
+            //unmapped now or once the payloads read from it are released
+            segment.release();
+            LOG.info("Deleted the segment {} of the messages store", segment.file);
+        }
+    }
+
+    /**
+     * Append again the tombstones of the segment that remove a message of an older segment
+     * still in the log, else the recovery would find the message not removed.
+     */
+    private void moveTombstones(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        final int end = segment.writePosition;
+        int position = 0;
+        while (position < end) {
+            int length = buffer.getInt(position);
+            if (buffer.get(position + 4) == RECORD_REMOVED) {
+                long removedOffset = buffer.getLong(position + 5);
+                Map.Entry<Long, Segment> older = m_segments.floorEntry(removedOffset);
+                if (removedOffset < segment.base && older != null && older.getValue().contains(removedOffset)) {
+                    appendRemoved(removedOffset);
+                }
+            }
+            position += align(4 + length);
+        }
+    }
+
+    /**
+     * @return true if no retained message is left in the segment.
+     */
+    private boolean moveRetained(Segment segment) {
+        boolean moved = true;
+        for (Map.Entry<String, String> entry : m_retained.entrySet()) {
+            Long offset = parseGuid(entry.getValue());
+            if (offset == null || !segment.contains(offset)) {
+                continue;
+            }
+            StoredMessage message = getMessageByGuid(entry.getValue());
+            if (message == null) {
+                m_retained.remove(entry.getKey(), entry.getValue());
+                continue;
+            }
+            long newOffset;
+            try {
+                newOffset = appendMessage(message, false);
+            } finally {
+                message.release();
+            }
+            m_retainedOffsets.add(newOffset);
+            //if the topic was retained again in the meantime the copy is just garbage
+            if (m_retained.replace(entry.getKey(), entry.getValue(), Long.toString(newOffset))) {
+                m_retainedOffsets.remove(offset);
+            } else {
+                m_retainedOffsets.remove(newOffset);
+                moved &= !entry.getValue().equals(m_retained.get(entry.getKey()));
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Force to disk the segments written since the last flush.
+     */
+    void flush() {
+        synchronized (m_flushLock) {
+            for (Segment segment : m_segments.values()) {
+                //not unmapped while forced
+                if (segment.dirty && segment.tryRetain()) {
+                    try {
+                        segment.dirty = false;
+                        segment.buffer.force();
+                    } finally {
+                        segment.release();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Flush the segments and release them, the ones with payloads not released yet are
+     * unmapped when the last is released.
+     */
+    public void close() {
+        m_scheduler.shutdown();
+        try {
+            m_scheduler.awaitTermination(CLEANER_INTERVAL, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            flush();
+            for (Segment segment : m_segments.values()) {
+                m_segments.remove(segment.base);
+                segment.release();
+            }
+        }
+        LOG.debug("Messages store is closed");
+    }
+
+    /**
+     * @return the number of segments still mapped, the deleted ones included till the
+     * payloads read from them are released.
+     */
+    int mappedSegments() {
+        return m_mappedSegments.get();
+    }
+
+    private static Long parseGuid(String guid) {
+        try {
+            return Long.valueOf(guid);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    private static int align(int size) {
+        return (size + RECORD_ALIGNMENT - 1) & -RECORD_ALIGNMENT;
+    }
+
+    /**
+     * @return the clientID of the message record at position, null if it has none.
+     */
+    private static String recordClientID(ByteBuffer buffer, int position) {
+        ByteBuffer reader = buffer.duplicate();
+        ((Buffer) reader).position(position + 5);
+        byte flags = reader.get();
+        if ((flags & FLAG_CLIENT_ID) == 0) {
+            return null;
+        }
+        reader.getInt();
+        skipString(reader);
+        return readString(reader);
+    }
+
+    /**
+     * Unmap the buffer without waiting for the GC, with Unsafe.invokeCleaner since Java 9 and
+     * with the cleaner of the buffer before. The buffer must not be accessed anymore.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                return;
+            }
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception ex) {
+            LOG.debug("Can't unmap a segment of the messages store, left to the GC", ex);
+        }
+    }
+
+    private static String readString(ByteBuffer reader) {
+        int length = reader.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        reader.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void skipString(ByteBuffer reader) {
+        int length = reader.getShort() & 0xFFFF;
+        ((Buffer) reader).position(reader.position() + length);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package me.ilbba.mqtt.spi.subscription;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Assign to every client with subscriptions a dense int handle, so the per client structures
+ * of the matching path can be arrays indexed by handle instead of maps keyed by clientID.
+ * The handles of the unregistered clients are reused.
+ *
+ * The registry also keeps a canonical instance of every clientID string, shared by all the
+ * subscriptions of the client.
+ */
+public class ClientRegistry {
+
+    public static final class Handle {
+        public final String clientID;
+        public final int id;
+
+        Handle(String clientID, int id) {
+            this.clientID = clientID;
+            this.id = id;
+        }
+
+        @Override
+        public String toString() {
+            return clientID + "#" + id;
+        }
+    }
+
+    private final ConcurrentMap<String, Handle> m_handles = new ConcurrentHashMap<String, Handle>();
+    private final ConcurrentLinkedQueue<Integer> m_freeIds = new ConcurrentLinkedQueue<Integer>();
+    private final AtomicInteger m_nextId = new AtomicInteger();
+
+    /**
+     * @return the handle of the client, assigning a new one if it's not registered.
+     */
+    public Handle register(String clientID) {
+        Handle handle = m_handles.get(clientID);
+        if (handle != null) {
+            return handle;
+        }
+        Integer freeId = m_freeIds.poll();
+        Handle newHandle = new Handle(clientID, freeId != null ? freeId : m_nextId.getAndIncrement());
+        handle = m_handles.putIfAbsent(clientID, newHandle);
+        if (handle != null) {
+            m_freeIds.offer(newHandle.id);
+            return handle;
+        }
+        return newHandle;
+    }
+
+    /**
+     * Release the handle of the client, it could be assigned to another client.
+     */
+    public void unregister(String clientID) {
+        Handle handle = m_handles.remove(clientID);
+        if (handle != null) {
+            m_freeIds.offer(handle.id);
+        }
+    }
+
+    /**
+     * @return the handle of the client or null if it's not registered.
+     */
+    public Handle handle(String clientID) {
+        return m_handles.get(clientID);
+    }
+
+    public int size() {
+        return m_handles.size();
+    }
+
+    /**
+     * @return an upper bound of the assigned ids, to size the arrays indexed by handle.
+     */
+    public int capacity() {
+        return m_nextId.get();
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package me.ilbba.mqtt.spi.subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable hash map implemented as a hash array mapped trie. Updates return a new map that
+ * shares all the untouched branches with the original one, so they copy only O(log n) nodes
+ * and the old version can still be read concurrently.
+ *
+ * Null keys and values are not supported.
+ */
+final class PersistentHashMap<K, V> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final PersistentHashMap<Object, Object> EMPTY =
+            new PersistentHashMap<Object, Object>(BitmapNode.EMPTY, 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentHashMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentHashMap<K, V> empty() {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(Object key) {
+        return (V) root.get(key, hash(key), 0);
+    }
+
+    /**
+     * @return a map with the key bound to value, replacing the previous binding if any.
+     */
+    PersistentHashMap<K, V> plus(K key, V value) {
+        int hash = hash(key);
+        Object previous = root.get(key, hash, 0);
+        if (previous == value) {
+            return this;
+        }
+        Node newRoot = root.put(new Entry(key, value, hash), 0);
+        return new PersistentHashMap<K, V>(newRoot, previous == null ? size + 1 : size);
+    }
+
+    /**
+     * @return a map without the key.
+     */
+    PersistentHashMap<K, V> minus(Object key) {
+        int hash = hash(key);
+        if (root.get(key, hash, 0) == null) {
+            return this;
+        }
+        return new PersistentHashMap<K, V>(root.remove(key, hash, 0), size - 1);
+    }
+
+    /**
+     * Append all the values to the sink, without creating iterators.
+     */
+    @SuppressWarnings("unchecked")
+    void addValuesTo(List<? super V> sink) {
+        root.addValuesTo((List<Object>) sink);
+    }
+
+    List<V> values() {
+        List<V> values = new ArrayList<V>(size);
+        addValuesTo(values);
+        return values;
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Entry {
+        final Object key;
+        final Object value;
+        final int hash;
+
+        Entry(Object key, Object value, int hash) {
+            this.key = key;
+            this.value = value;
+            this.hash = hash;
+        }
+
+        boolean hasKey(Object key, int hash) {
+            return this.hash == hash && this.key.equals(key);
+        }
+    }
+
+    private static abstract class Node {
+
+        abstract Object get(Object key, int hash, int shift);
+
+        abstract Node put(Entry entry, int shift);
+
+        abstract Node remove(Object key, int hash, int shift);
+
+        abstract void addValuesTo(List<Object> sink);
+
+        /**
+         * @return the only entry of the node if it has no other entries or sub nodes, else null.
+         */
+        abstract Entry singleEntry();
+
+        abstract boolean isEmpty();
+    }
+
+    /**
+     * Node with up to 32 slots, one for every value of the 5 bits of the hash consumed at its
+     * level. A slot holds either an Entry or a sub node.
+     */
+    private static final class BitmapNode extends Node {
+
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        final int bitmap;
+        final Object[] slots;
+
+        BitmapNode(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        Object get(Object key, int hash, int shift) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            Object slot = slots[index(bit)];
+            if (slot instanceof Entry) {
+                Entry entry = (Entry) slot;
+                return entry.hasKey(key, hash) ? entry.value : null;
+            }
+            return ((Node) slot).get(key, hash, shift + BITS);
+        }
+
+        @Override
+        Node put(Entry entry, int shift) {
+            int bit = 1 << ((entry.hash >>> shift) & MASK);
+            int idx = index(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] newSlots = new Object[slots.length + 1];
+                System.arraycopy(slots, 0, newSlots, 0, idx);
+                newSlots[idx] = entry;
+                System.arraycopy(slots, idx, newSlots, idx + 1, slots.length - idx);
+                return new BitmapNode(bitmap | bit, newSlots);
+            }
+
+            Object slot = slots[idx];
+            Object newSlot;
+            if (slot instanceof Entry) {
+                Entry existing = (Entry) slot;
+                newSlot = existing.hasKey(entry.key, entry.hash) ? entry : merge(existing, entry, shift + BITS);
+            } else {
+                newSlot = ((Node) slot).put(entry, shift + BITS);
+            }
+            return withSlot(idx, newSlot);
+        }
+
+        @Override
+        Node remove(Object key, int hash, int shift) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int idx = index(bit);
+            Object slot = slots[idx];
+            if (slot instanceof Entry) {
+                return ((Entry) slot).hasKey(key, hash) ? withoutSlot(bit, idx) : this;
+            }
+
+            Node child = ((Node) slot).remove(key, hash, shift + BITS);
+            if (child == slot) {
+                return this;
+            }
+            if (child.isEmpty()) {
+                return withoutSlot(bit, idx);
+            }
+            //pull up the lonely entries, so the trie stays as shallow as possible
+            Entry single = child.singleEntry();
+            return withSlot(idx, single != null ? single : child);
+        }
+
+        private BitmapNode withSlot(int idx, Object slot) {
+            Object[] newSlots = slots.clone();
+            newSlots[idx] = slot;
+            return new BitmapNode(bitmap, newSlots);
+        }
+
+        private BitmapNode withoutSlot(int bit, int idx) {
+            Object[] newSlots = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, newSlots, 0, idx);
+            System.arraycopy(slots, idx + 1, newSlots, idx, slots.length - idx - 1);
+            return new BitmapNode(bitmap & ~bit, newSlots);
+        }
+
+        /**
+         * Create the sub node holding 2 entries whose hashes share the bits consumed so far.
+         */
+        private static Node merge(Entry e1, Entry e2, int shift) {
+            if (e1.hash == e2.hash) {
+                return new CollisionNode(e1.hash, new Entry[]{e1, e2});
+            }
+            int b1 = (e1.hash >>> shift) & MASK;
+            int b2 = (e2.hash >>> shift) & MASK;
+            if (b1 == b2) {
+                return new BitmapNode(1 << b1, new Object[]{merge(e1, e2, shift + BITS)});
+            }
+            Object[] newSlots = b1 < b2 ? new Object[]{e1, e2} : new Object[]{e2, e1};
+            return new BitmapNode((1 << b1) | (1 << b2), newSlots);
+        }
+
+        @Override
+        void addValuesTo(List<Object> sink) {
+            for (Object slot : slots) {
+                if (slot instanceof Entry) {
+                    sink.add(((Entry) slot).value);
+                } else {
+                    ((Node) slot).addValuesTo(sink);
+                }
+            }
+        }
+
+        @Override
+        Entry singleEntry() {
+            return slots.length == 1 && slots[0] instanceof Entry ? (Entry) slots[0] : null;
+        }
+
+        @Override
+        boolean isEmpty() {
+            return slots.length == 0;
+        }
+    }
+
+    /**
+     * Node of the entries whose keys have the same full hash.
+     */
+    private static final class CollisionNode extends Node {
+
+        final int hash;
+        final Entry[] entries;
+
+        CollisionNode(int hash, Entry[] entries) {
+            this.hash = hash;
+            this.entries = entries;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i].key.equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Object get(Object key, int hash, int shift) {
+            if (hash != this.hash) {
+                return null;
+            }
+            int idx = indexOf(key);
+            return idx < 0 ? null : entries[idx].value;
+        }
+
+        @Override
+        Node put(Entry entry, int shift) {
+            if (entry.hash != hash) {
+                //nest this node in a bitmap one, then it can host the different hash
+                BitmapNode parent = new BitmapNode(1 << ((hash >>> shift) & MASK), new Object[]{this});
+                return parent.put(entry, shift);
+            }
+            int idx = indexOf(entry.key);
+            Entry[] newEntries;
+            if (idx < 0) {
+                newEntries = new Entry[entries.length + 1];
+                System.arraycopy(entries, 0, newEntries, 0, entries.length);
+                newEntries[entries.length] = entry;
+            } else {
+                newEntries = entries.clone();
+                newEntries[idx] = entry;
+            }
+            return new CollisionNode(hash, newEntries);
+        }
+
+        @Override
+        Node remove(Object key, int hash, int shift) {
+            int idx = hash == this.hash ? indexOf(key) : -1;
+            if (idx < 0) {
+                return this;
+            }
+            Entry[] newEntries = new Entry[entries.length - 1];
+            System.arraycopy(entries, 0, newEntries, 0, idx);
+            System.arraycopy(entries, idx + 1, newEntries, idx, entries.length - idx - 1);
+            return new CollisionNode(hash, newEntries);
+        }
+
+        @Override
+        void addValuesTo(List<Object> sink) {
+            for (Entry entry : entries) {
+                sink.add(entry.value);
+            }
+        }
+
+        @Override
+        Entry singleEntry() {
+            return entries.length == 1 ? entries[0] : null;
+        }
+
+        @Override
+        boolean isEmpty() {
+            return entries.length == 0;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package me.ilbba.mqtt.spi.subscription;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Members of a shared subscription group ($share/{group}/{filter}) ending on a tree node, every
+ * matching message is delivered to only one of them. Immutable as the node that holds it.
+ */
+final class SharedGroup {
+
+    final String name;
+    final Subscription[] members;
+    //shared by all the versions of the group, so the rotation survives the updates of the tree
+    private final AtomicInteger m_cursor;
+
+    SharedGroup(String name) {
+        this(name, new Subscription[0], new AtomicInteger());
+    }
+
+    private SharedGroup(String name, Subscription[] members, AtomicInteger cursor) {
+        this.name = name;
+        this.members = members;
+        this.m_cursor = cursor;
+    }
+
+    /**
+     * @return the group with the subscription added, replacing the one of the same client.
+     */
+    SharedGroup withMember(Subscription sub) {
+        int idx = indexOf(sub.clientId);
+        Subscription[] newMembers;
+        if (idx < 0) {
+            newMembers = Arrays.copyOf(members, members.length + 1);
+            newMembers[members.length] = sub;
+        } else {
+            newMembers = members.clone();
+            newMembers[idx] = sub;
+        }
+        return new SharedGroup(name, newMembers, m_cursor);
+    }
+
+    SharedGroup withoutMember(String clientID) {
+        int idx = indexOf(clientID);
+        if (idx < 0) {
+            return this;
+        }
+        Subscription[] newMembers = new Subscription[members.length - 1];
+        System.arraycopy(members, 0, newMembers, 0, idx);
+        System.arraycopy(members, idx + 1, newMembers, idx, members.length - idx - 1);
+        return new SharedGroup(name, newMembers, m_cursor);
+    }
+
+    boolean isEmpty() {
+        return members.length == 0;
+    }
+
+    /**
+     * Select the member that has to receive a message published on topic.
+     *
+     * @param inflightCounter used by {@link SharedSubscriptionStrategy#LEAST_INFLIGHT}, could be null.
+     * @return the selected member, null if the group is empty.
+     */
+    Subscription select(SharedSubscriptionStrategy strategy, String topic,
+                        SubscriptionsStore.InflightCounter inflightCounter) {
+        final int size = members.length;
+        if (size == 0) {
+            return null;
+        }
+        if (size == 1) {
+            return members[0];
+        }
+        switch (strategy) {
+            case STICKY_HASH:
+                int hash = topic.hashCode();
+                return members[((hash ^ (hash >>> 16)) & 0x7FFFFFFF) % size];
+            case LEAST_INFLIGHT:
+                //without counters it's a round robin
+                return inflightCounter != null ? leastInflight(inflightCounter) : roundRobin();
+            default:
+                return roundRobin();
+        }
+    }
+
+    private Subscription roundRobin() {
+        return members[(m_cursor.getAndIncrement() & 0x7FFFFFFF) % members.length];
+    }
+
+    private Subscription leastInflight(SubscriptionsStore.InflightCounter inflightCounter) {
+        //start from a rotating member, so the ties are balanced too
+        final int start = m_cursor.getAndIncrement() & 0x7FFFFFFF;
+        Subscription selected = null;
+        int minInflight = Integer.MAX_VALUE;
+        for (int i = 0; i < members.length; i++) {
+            Subscription member = members[(start + i) % members.length];
+            int inflight = inflightCounter.inflight(member.clientId);
+            if (inflight < minInflight) {
+                minInflight = inflight;
+                selected = member;
+            }
+        }
+        return selected;
+    }
+
+    private int indexOf(String clientID) {
+        for (int i = 0; i < members.length; i++) {
+            if (members[i].clientId.equals(clientID)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "SharedGroup{" + name + ", members=" + Arrays.toString(members) + '}';
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package me.ilbba.mqtt.spi.subscription;
+
+/**
+ * How a shared subscription group selects the member that receives a message.
+ */
+public enum SharedSubscriptionStrategy {
+    /**
+     * Every member in turn.
+     */
+    ROUND_ROBIN,
+    /**
+     * The member with less messages in flight, needs an inflight counter else behaves as
+     * {@link #ROUND_ROBIN}.
+     */
+    LEAST_INFLIGHT,
+    /**
+     * Always the same member for the same topic, as long as the group doesn't change, so the
+     * messages of a topic are consumed in order.
+     */
+    STICKY_HASH;
+
+    /**
+     * @return the strategy with the given name, case insensitive, or the default one if the
+     * name is null.
+     */
+    public static SharedSubscriptionStrategy parse(String name, SharedSubscriptionStrategy defaultStrategy) {
+        if (name == null || name.trim().isEmpty()) {
+            return defaultStrategy;
+        }
+        return valueOf(name.trim().toUpperCase());
+    }
+}
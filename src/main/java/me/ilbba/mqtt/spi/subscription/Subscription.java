@@ -32,6 +32,8 @@ public class Subscription implements Serializable {
     String clientId;
     String topicFilter;
     boolean active = true;
+    //dense id of the client assigned by the ClientRegistry of the store, not persisted
+    private transient int clientHandle = -1;
 
     public Subscription(String clientId, String topicFilter, MqttQoS requestedQos) {
         this.requestedQos = requestedQos;
@@ -58,6 +60,14 @@ public class Subscription implements Serializable {
         return topicFilter;
     }
 
+    int clientHandle() {
+        return clientHandle;
+    }
+
+    void setClientHandle(int clientHandle) {
+        this.clientHandle = clientHandle;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package me.ilbba.mqtt.spi.subscription;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+import org.mapdb.Serializer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * MapDB serializer of the subscriptions, in place of the java serialization. The layout is
+ * [version][flags][client id][topic filter], the flags hold the qos in the low bits and the
+ * active flag, the strings are UTF-8 prefixed by a varint of their length + 1, 0 for null.
+ */
+public final class SubscriptionSerializer implements Serializer<Subscription>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final SubscriptionSerializer INSTANCE = new SubscriptionSerializer();
+
+    private static final int VERSION = 1;
+    private static final int FLAG_ACTIVE = 0x04;
+
+    @Override
+    public void serialize(DataOutput out, Subscription value) throws IOException {
+        out.writeByte(VERSION);
+        int flags = value.requestedQos.value();
+        if (value.active) {
+            flags |= FLAG_ACTIVE;
+        }
+        out.writeByte(flags);
+        writeString(out, value.clientId);
+        writeString(out, value.topicFilter);
+    }
+
+    @Override
+    public Subscription deserialize(DataInput in, int available) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unknown version " + version + " of a subscription");
+        }
+        int flags = in.readUnsignedByte();
+        String clientId = readString(in);
+        String topicFilter = readString(in);
+        Subscription subscription = new Subscription(clientId, topicFilter, MqttQoS.valueOf(flags & 0x03));
+        subscription.active = (flags & FLAG_ACTIVE) != 0;
+        return subscription;
+    }
+
+    @Override
+    public int fixedSize() {
+        return -1;
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            DataOutput2.packInt(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        DataOutput2.packInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = DataInput2.unpackInt(in);
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length - 1];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Object readResolve() {
+        return INSTANCE;
+    }
+}
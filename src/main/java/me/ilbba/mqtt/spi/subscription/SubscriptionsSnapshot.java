@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package me.ilbba.mqtt.spi.subscription;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of the subscriptions plus a journal of the changes applied after it, so the
+ * subscriptions tree can be reloaded without scanning the sessions store.
+ *
+ * The snapshot holds the subscriptions grouped by client and ends with the CRC32 of its body,
+ * it's written to a temporary file and renamed over the previous one. At every snapshot the
+ * journal is rotated: the rotated one is dropped only once the new snapshot is in place, so
+ * a crash in the middle reloads the older snapshot plus both journals. The journal is not
+ * synced at every append, a crash of the host could lose its last records.
+ *
+ * The strings are written as their UTF-8 bytes preceded by the int length, both in the
+ * snapshot and in the journal.
+ */
+class SubscriptionsSnapshot implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SubscriptionsSnapshot.class);
+
+    private static final int MAGIC = 0x4D515353;
+    //2: int lengths of the strings
+    private static final int VERSION = 2;
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_REMOVE_CLIENT = 3;
+
+    private final File m_snapshotFile;
+    private final File m_journalFile;
+    private final File m_rotatedJournalFile;
+    private DataOutputStream m_journal;
+    //scratch buffer of the record being appended, written with a single write
+    private final ByteArrayOutputStream m_record = new ByteArrayOutputStream(128);
+    private final DataOutputStream m_recordOut = new DataOutputStream(m_record);
+
+    SubscriptionsSnapshot(File directory) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Can't create the subscriptions snapshot directory " + directory);
+        }
+        m_snapshotFile = new File(directory, "subscriptions.snapshot");
+        m_journalFile = new File(directory, "subscriptions.journal");
+        m_rotatedJournalFile = new File(directory, "subscriptions.journal.rotated");
+    }
+
+    /**
+     * @return the subscriptions of the snapshot with the journals replayed on top, null if
+     * there isn't a valid snapshot.
+     */
+    List<Subscription> load() {
+        if (!m_snapshotFile.exists()) {
+            return null;
+        }
+        //clientID -> topic filter -> subscription
+        Map<String, Map<String, Subscription>> byClient = new HashMap<String, Map<String, Subscription>>();
+        try {
+            readSnapshot(byClient);
+        } catch (IOException ex) {
+            LOG.warn("Can't read the subscriptions snapshot " + m_snapshotFile + ", ignored", ex);
+            return null;
+        } catch (RuntimeException ex) {
+            LOG.warn("Corrupted subscriptions snapshot " + m_snapshotFile + ", ignored", ex);
+            return null;
+        }
+        int replayed = replay(m_rotatedJournalFile, byClient) + replay(m_journalFile, byClient);
+        LOG.info("Replayed {} journaled subscriptions changes on the snapshot", replayed);
+
+        List<Subscription> res = new ArrayList<Subscription>();
+        for (Map<String, Subscription> subs : byClient.values()) {
+            res.addAll(subs.values());
+        }
+        return res;
+    }
+
+    private void readSnapshot(Map<String, Map<String, Subscription>> byClient) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(m_snapshotFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Unknown format");
+            }
+            final int bodyEnd = buffer.limit() - 8;
+            ByteBuffer body = buffer.duplicate();
+            ((Buffer) body).limit(bodyEnd);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if (crc.getValue() != buffer.getLong(bodyEnd)) {
+                throw new IOException("Bad checksum");
+            }
+
+            ((Buffer) buffer).limit(bodyEnd);
+            byte[] scratch = new byte[256];
+            int clients = buffer.getInt();
+            for (int i = 0; i < clients; i++) {
+                String clientID = readString(buffer, scratch);
+                int count = buffer.getInt();
+                Map<String, Subscription> subs = new HashMap<String, Subscription>(count * 2);
+                for (int j = 0; j < count; j++) {
+                    Subscription sub = readSubscription(clientID, buffer, scratch);
+                    subs.put(sub.topicFilter, sub);
+                }
+                byClient.put(clientID, subs);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @return the number of records replayed, a truncated last record is ignored.
+     */
+    private int replay(File journalFile, Map<String, Map<String, Subscription>> byClient) {
+        if (!journalFile.exists()) {
+            return 0;
+        }
+        int replayed = 0;
+        try {
+            final long journalLength = journalFile.length();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+            try {
+                while (true) {
+                    byte op = in.readByte();
+                    String clientID = readString(in, journalLength);
+                    String topicFilter = readString(in, journalLength);
+                    byte flags = in.readByte();
+                    switch (op) {
+                        case OP_ADD:
+                            Map<String, Subscription> subs = byClient.get(clientID);
+                            if (subs == null) {
+                                subs = new HashMap<String, Subscription>();
+                                byClient.put(clientID, subs);
+                            }
+                            subs.put(topicFilter, subscription(clientID, topicFilter, flags));
+                            break;
+                        case OP_REMOVE:
+                            Map<String, Subscription> clientSubs = byClient.get(clientID);
+                            if (clientSubs != null) {
+                                clientSubs.remove(topicFilter);
+                            }
+                            break;
+                        case OP_REMOVE_CLIENT:
+                            byClient.remove(clientID);
+                            break;
+                        default:
+                            LOG.warn("Unknown record {} in the subscriptions journal {}, stopped", op, journalFile);
+                            return replayed;
+                    }
+                    replayed++;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (EOFException eof) {
+            return replayed;
+        } catch (IOException ex) {
+            LOG.warn("Can't read the subscriptions journal " + journalFile + ", replayed " + replayed + " records", ex);
+            return replayed;
+        }
+    }
+
+    synchronized void journalAdd(Subscription sub) {
+        append(OP_ADD, sub.clientId, sub.topicFilter, flags(sub));
+    }
+
+    synchronized void journalRemove(String clientID, String topicFilter) {
+        append(OP_REMOVE, clientID, topicFilter, (byte) 0);
+    }
+
+    synchronized void journalRemoveClient(String clientID) {
+        append(OP_REMOVE_CLIENT, clientID, "", (byte) 0);
+    }
+
+    private void append(byte op, String clientID, String topicFilter, byte flags) {
+        try {
+            if (m_journal == null) {
+                m_journal = new DataOutputStream(new FileOutputStream(m_journalFile, true));
+            }
+            m_record.reset();
+            m_recordOut.writeByte(op);
+            writeString(m_recordOut, clientID);
+            writeString(m_recordOut, topicFilter);
+            m_recordOut.writeByte(flags);
+            m_record.writeTo(m_journal);
+        } catch (IOException ex) {
+            LOG.error("Can't append to the subscriptions journal " + m_journalFile, ex);
+        }
+    }
+
+    /**
+     * Start a new journal, the changes journaled so far must be part of the next snapshot
+     * written with {@link #write(Collection)}.
+     */
+    synchronized void rotateJournal() throws IOException {
+        closeJournal();
+        if (!m_journalFile.exists()) {
+            return;
+        }
+        if (!m_rotatedJournalFile.exists()) {
+            if (!m_journalFile.renameTo(m_rotatedJournalFile)) {
+                throw new IOException("Can't rotate the subscriptions journal " + m_journalFile);
+            }
+            return;
+        }
+        //the last snapshot failed, keep all the changes after the one on disk
+        FileOutputStream rotated = new FileOutputStream(m_rotatedJournalFile, true);
+        FileInputStream journal = new FileInputStream(m_journalFile);
+        try {
+            rotated.getChannel().transferFrom(journal.getChannel(), rotated.getChannel().size(), journal.getChannel().size());
+        } finally {
+            journal.close();
+            rotated.close();
+        }
+        if (!m_journalFile.delete()) {
+            throw new IOException("Can't rotate the subscriptions journal " + m_journalFile);
+        }
+    }
+
+    /**
+     * Replace the snapshot with the subscriptions and drop the rotated journal.
+     */
+    void write(Collection<Subscription> subscriptions) throws IOException {
+        Map<String, List<Subscription>> byClient = new HashMap<String, List<Subscription>>();
+        for (Subscription sub : subscriptions) {
+            List<Subscription> subs = byClient.get(sub.clientId);
+            if (subs == null) {
+                subs = new ArrayList<Subscription>();
+                byClient.put(sub.clientId, subs);
+            }
+            subs.add(sub);
+        }
+
+        File tmpFile = new File(m_snapshotFile.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmpFile);
+        try {
+            DataOutputStream header = new DataOutputStream(fileOut);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOut, 64 * 1024), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(byClient.size());
+            for (Map.Entry<String, List<Subscription>> entry : byClient.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (Subscription sub : entry.getValue()) {
+                    writeString(out, sub.topicFilter);
+                    out.writeByte(flags(sub));
+                }
+            }
+            out.flush();
+            header.writeLong(checked.getChecksum().getValue());
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        if (!tmpFile.renameTo(m_snapshotFile)) {
+            //not atomic, but a missing snapshot is rebuilt from the sessions store
+            if (!m_snapshotFile.delete() || !tmpFile.renameTo(m_snapshotFile)) {
+                throw new IOException("Can't replace the subscriptions snapshot " + m_snapshotFile);
+            }
+        }
+        if (m_rotatedJournalFile.exists() && !m_rotatedJournalFile.delete()) {
+            LOG.warn("Can't delete the rotated subscriptions journal {}", m_rotatedJournalFile);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            closeJournal();
+        } catch (IOException ex) {
+            LOG.error("Can't close the subscriptions journal " + m_journalFile, ex);
+        }
+    }
+
+    private void closeJournal() throws IOException {
+        if (m_journal != null) {
+            m_journal.close();
+            m_journal = null;
+        }
+    }
+
+    private static byte flags(Subscription sub) {
+        return (byte) (sub.requestedQos.value() | (sub.active ? 0x04 : 0));
+    }
+
+    private static Subscription subscription(String clientID, String topicFilter, byte flags) {
+        Subscription sub = new Subscription(clientID, topicFilter, MqttQoS.valueOf(flags & 0x03));
+        sub.active = (flags & 0x04) != 0;
+        return sub;
+    }
+
+    private static Subscription readSubscription(String clientID, ByteBuffer buffer, byte[] scratch) {
+        String topicFilter = readString(buffer, scratch);
+        return subscription(clientID, topicFilter, buffer.get());
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer, byte[] scratch) {
+        int length = buffer.getInt();
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param maxLength bound of a valid length, so a corrupted one doesn't allocate a huge buffer.
+     */
+    private static String readString(DataInputStream in, long maxLength) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Corrupted string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -15,16 +15,37 @@
  */
 package me.ilbba.mqtt.spi.subscription;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.AtomicLongMap;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import me.ilbba.mqtt.Const;
 import me.ilbba.mqtt.spi.iface.ISessionsStore;
+import me.ilbba.mqtt.util.Prop;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.ParseException;
 import java.util.*;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import me.ilbba.mqtt.spi.iface.ISessionsStore.ClientTopicCouple;
 
@@ -49,12 +70,76 @@ public class SubscriptionsStore {
         }
     }
 
+    /**
+     * Counters of the matches cache, a snapshot taken by {@link #matchesCacheStats()}.
+     */
+    public static class MatchesCacheStats {
+        public final long hits;
+        public final long misses;
+        //cached results found stale because the tree changed
+        public final long invalidations;
+        public final long evictions;
+        public final long size;
+
+        public MatchesCacheStats(long hits, long misses, long invalidations, long evictions, long size) {
+            this.hits = hits;
+            this.misses = misses;
+            this.invalidations = invalidations;
+            this.evictions = evictions;
+            this.size = size;
+        }
+
+        public double hitRatio() {
+            long requests = hits + misses;
+            return requests == 0 ? 1.0 : (double) hits / requests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[hits: %d, misses: %d, invalidations: %d, evictions: %d, size: %d]",
+                    hits, misses, invalidations, evictions, size);
+        }
+    }
+
+    /**
+     * Result of a match stamped with the generations of the shards it was computed from and
+     * with the leaf of the exact filter, it's valid as long as they doesn't change.
+     */
+    private static final class CachedMatch {
+        final long shardGeneration;
+        final long wildcardGeneration;
+        final TreeNode exactLeaf;
+        final List<Subscription> subscriptions;
+        final List<SharedGroup> groups;
+
+        CachedMatch(long shardGeneration, long wildcardGeneration, TreeNode exactLeaf,
+                    List<Subscription> subscriptions, List<SharedGroup> groups) {
+            this.shardGeneration = shardGeneration;
+            this.wildcardGeneration = wildcardGeneration;
+            this.exactLeaf = exactLeaf;
+            this.subscriptions = subscriptions;
+            this.groups = groups;
+        }
+
+        boolean isValid(long shardGeneration, long wildcardGeneration, TreeNode exactLeaf) {
+            return this.shardGeneration == shardGeneration && this.wildcardGeneration == wildcardGeneration
+                    && this.exactLeaf == exactLeaf;
+        }
+    }
+
     /**
      * Check if the topic filter of the subscription is well formed
      */
     public static boolean validate(String topicFilter) {
         try {
-            parseTopic(topicFilter);
+            if (isShared(topicFilter)) {
+                String group = sharedGroupName(topicFilter);
+                if (group.isEmpty() || isWildcard(group) || matchingFilter(topicFilter).isEmpty()) {
+                    LOG.info("Bad shared subscription topic filter <{}>", topicFilter);
+                    return false;
+                }
+            }
+            parseTopic(matchingFilter(topicFilter));
             return true;
         } catch (ParseException pex) {
             LOG.info("Bad matching topic filter <{}>", topicFilter);
@@ -62,6 +147,38 @@ public class SubscriptionsStore {
         }
     }
 
+    /**
+     * Source of the number of messages in flight for a client, used to balance the shared
+     * subscriptions with {@link SharedSubscriptionStrategy#LEAST_INFLIGHT}.
+     */
+    public interface InflightCounter {
+        int inflight(String clientID);
+    }
+
+    /**
+     * Receiver of the subscriptions matching a published topic, fed by
+     * {@link #matches(String, MqttQoS, MatchSink)} while the match is in progress.
+     */
+    public interface MatchSink {
+        /**
+         * @param subscription the one with the greatest qos among the matching ones of its client.
+         * @param effectiveQos the qos of the delivery, the lower of the requested and the published one.
+         */
+        void onMatch(Subscription subscription, MqttQoS effectiveQos);
+    }
+
+    /**
+     * Adapter of the matches that append to a list.
+     */
+    private static final class ListSink implements MatchSink {
+        List<Subscription> target;
+
+        @Override
+        public void onMatch(Subscription subscription, MqttQoS effectiveQos) {
+            target.add(subscription);
+        }
+    }
+
     public interface IVisitor<T> {
         void visit(TreeNode node, int deep);
 
@@ -76,11 +193,14 @@ public class SubscriptionsStore {
         public void visit(TreeNode node, int deep) {
             String subScriptionsStr = "";
             String indentTabs = indentTabs(deep);
-            for (ClientTopicCouple couple : node.m_subscriptions) {
-                subScriptionsStr += indentTabs + couple.toString() + "\n";
+            for (Subscription sub : node.subscriptions()) {
+                subScriptionsStr += indentTabs + sub.toString() + "\n";
+            }
+            for (SharedGroup group : node.sharedGroups()) {
+                subScriptionsStr += indentTabs + group.toString() + "\n";
             }
             s += node.getToken() == null ? "" : node.getToken().toString();
-            s += "\n" + (node.m_subscriptions.isEmpty() ? indentTabs : "") + subScriptionsStr /*+ "\n"*/;
+            s += "\n" + (!node.hasSubscriptions() ? indentTabs : "") + subScriptionsStr /*+ "\n"*/;
         }
 
         private String indentTabs(int deep) {
@@ -98,54 +218,398 @@ public class SubscriptionsStore {
         }
     }
 
-    private AtomicReference<TreeNode> subscriptions = new AtomicReference<TreeNode>(new TreeNode());
+    /**
+     * Scratch structures reused by every matches invoked from the same thread, so that the
+     * publish path doesn't allocate queues and intermediate collections at each call.
+     */
+    private static final class MatchCursor {
+        //for the published topics
+        final TopicTokenizer tokenizer = new TopicTokenizer();
+        //for the topic filters, parsed by the subscription path
+        final TopicTokenizer filterTokenizer = new TopicTokenizer();
+        final List<Subscription> matchingSubs = Lists.newArrayList();
+        final List<SharedGroup> matchingGroups = Lists.newArrayList();
+        final ListSink listSink = new ListSink();
+        //set while a match is using the cursor, a sink that matches again gets a new one
+        boolean busy;
+        //subscription with the greatest qos for every client handle, the handles set are in touched
+        Subscription[] subsForClient = new Subscription[64];
+        int[] touched = new int[16];
+        int touchedCount;
+        //subscriptions whose handle was reassigned to another client while matching
+        final List<Subscription> reassigned = Lists.newArrayList();
+
+        /**
+         * Keep sub if its client has no other subscription merged or a lower qos one.
+         */
+        void mergeMaxQos(Subscription sub) {
+            final int handle = sub.clientHandle();
+            if (handle >= subsForClient.length) {
+                subsForClient = Arrays.copyOf(subsForClient, Math.max(handle + 1, subsForClient.length * 2));
+            }
+            Subscription existingSub = subsForClient[handle];
+            if (existingSub == null) {
+                subsForClient[handle] = sub;
+                if (touchedCount == touched.length) {
+                    touched = Arrays.copyOf(touched, touched.length * 2);
+                }
+                touched[touchedCount++] = handle;
+                return;
+            }
+            if (!existingSub.clientId.equals(sub.clientId)) {
+                //a tree read before the release of the handle, don't merge different clients
+                reassigned.add(sub);
+                return;
+            }
+            if (existingSub.getRequestedQos().value() < sub.getRequestedQos().value()) {
+                subsForClient[handle] = sub;
+            }
+        }
+
+        /**
+         * Move the merged subscriptions to the sink, resetting only the touched slots.
+         */
+        void drainMergedTo(List<Subscription> sink) {
+            for (int i = 0; i < touchedCount; i++) {
+                sink.add(subsForClient[touched[i]]);
+                subsForClient[touched[i]] = null;
+            }
+            touchedCount = 0;
+            //addAll copies even an empty list to an array
+            for (int i = 0; i < reassigned.size(); i++) {
+                sink.add(reassigned.get(i));
+            }
+            reassigned.clear();
+        }
+
+        /**
+         * Push the merged subscriptions to the sink, the slots are reset by {@link #clear()}.
+         */
+        void pushMergedTo(MatchSink sink, MqttQoS publishedQos) {
+            for (int i = 0; i < touchedCount; i++) {
+                push(subsForClient[touched[i]], publishedQos, sink);
+            }
+            for (int i = 0; i < reassigned.size(); i++) {
+                push(reassigned.get(i), publishedQos, sink);
+            }
+        }
+
+        void clear() {
+            matchingSubs.clear();
+            matchingGroups.clear();
+            for (int i = 0; i < touchedCount; i++) {
+                subsForClient[touched[i]] = null;
+            }
+            touchedCount = 0;
+            reassigned.clear();
+            listSink.target = null;
+        }
+    }
+
+    private static final ThreadLocal<MatchCursor> MATCH_CURSOR = new ThreadLocal<MatchCursor>() {
+        @Override
+        protected MatchCursor initialValue() {
+            return new MatchCursor();
+        }
+    };
+
+    public static final int DEFAULT_SHARDS = 16;
+    private static final int CLIENT_LOCK_STRIPES = 256;
+    public static final int DEFAULT_COMPACTION_DEAD_PERCENT = 20;
+
+    //prefix of the shared subscriptions filters, $share/{group}/{filter}
+    static final String SHARED_PREFIX = "$share/";
+
     private static final Logger LOG = LoggerFactory.getLogger(SubscriptionsStore.class);
-    private volatile ISessionsStore m_sessionsStore;
+
+    //roots of the sub trees partitioned by first topic level, the last one holds the filters
+    //starting with a wildcard and is visited by every match
+    private final AtomicReferenceArray<TreeNode> m_shards;
+    private final int m_wildcardShard;
+    //failed compareAndSet on every shard root, to monitor the contention
+    private final AtomicLongArray m_casRetries;
+    //incremented after every swap of the shard root, used to stamp the cached matches
+    private final AtomicLongArray m_generations;
+    //topic -> deduplicated subscriptions, null if the cache is disabled
+    private final Cache<String, CachedMatch> m_matchesCache;
+    private final AtomicLong m_cacheHits = new AtomicLong();
+    private final AtomicLong m_cacheMisses = new AtomicLong();
+    private final AtomicLong m_cacheInvalidations = new AtomicLong();
+    //topic filters without wildcards are kept out of the tree, indexed by the whole filter,
+    //so a publish finds them with a single lookup. Every leaf is replaced, never modified.
+    private final ConcurrentMap<String, TreeNode> m_exactSubscriptions = new ConcurrentHashMap<String, TreeNode>();
+    //subscriptions in m_exactSubscriptions, in total and by first level of the filter
+    private final AtomicLong m_exactSize = new AtomicLong();
+    private final AtomicLongMap<String> m_exactSizeByFirstLevel = AtomicLongMap.create();
+    //reverse index clientID -> topic filters subscribed, used to reach only the client's leaves on removal
+    private final ConcurrentMap<String, Set<String>> m_clientFilters = new ConcurrentHashMap<String, Set<String>>();
+    //dense handles of the clients in m_clientFilters, used to deduplicate the matches by client
+    private final ClientRegistry m_clients = new ClientRegistry();
+    //held by the changes of a client while they register or unregister its handle, so a
+    //handle is never freed while a concurrent change of the same client is using it, and
+    //while they append to the journal, so the journal keeps the order of the tree
+    private final Striped<Lock> m_clientLocks = Striped.lock(CLIENT_LOCK_STRIPES);
+    private volatile SharedSubscriptionStrategy m_sharedStrategy = SharedSubscriptionStrategy.ROUND_ROBIN;
+    private volatile InflightCounter m_inflightCounter;
+    //periodic check of the dead nodes, null if not started
+    private ScheduledExecutorService m_scheduler;
+    //snapshot and journal of the subscriptions, null if disabled
+    private volatile SubscriptionsSnapshot m_snapshot;
+    //taken in read mode by the changes to apply and journal them together, in write mode to rotate the journal
+    private final ReentrantReadWriteLock m_snapshotLock = new ReentrantReadWriteLock();
+
+    public SubscriptionsStore() {
+        this(DEFAULT_SHARDS);
+    }
+
+    public SubscriptionsStore(int shards) {
+        this(shards, 0);
+    }
+
+    /**
+     * Configure the store from the properties {@link Const#SUBSCRIPTIONS_SHARDS_PROPERTY_NAME},
+     * {@link Const#MATCHES_CACHE_SIZE_PROPERTY_NAME},
+     * {@link Const#SHARED_SUBSCRIPTION_STRATEGY_PROPERTY_NAME} and, to start the compactor,
+     * {@link Const#SUBSCRIPTIONS_COMPACTION_INTERVAL_PROPERTY_NAME} (in seconds) and
+     * {@link Const#SUBSCRIPTIONS_COMPACTION_DEAD_PERCENT_PROPERTY_NAME}, to keep a snapshot,
+     * {@link Const#SUBSCRIPTIONS_SNAPSHOT_PATH_PROPERTY_NAME} and
+     * {@link Const#SUBSCRIPTIONS_SNAPSHOT_INTERVAL_PROPERTY_NAME} (in seconds).
+     */
+    public SubscriptionsStore(Prop props) {
+        this(props.getInt(Const.SUBSCRIPTIONS_SHARDS_PROPERTY_NAME, DEFAULT_SHARDS),
+                props.getLong(Const.MATCHES_CACHE_SIZE_PROPERTY_NAME, 0L));
+        m_sharedStrategy = SharedSubscriptionStrategy.parse(
+                props.get(Const.SHARED_SUBSCRIPTION_STRATEGY_PROPERTY_NAME), SharedSubscriptionStrategy.ROUND_ROBIN);
+        String snapshotPath = props.get(Const.SUBSCRIPTIONS_SNAPSHOT_PATH_PROPERTY_NAME);
+        if (snapshotPath != null && !snapshotPath.isEmpty()) {
+            enableSnapshot(snapshotPath, props.getLong(Const.SUBSCRIPTIONS_SNAPSHOT_INTERVAL_PROPERTY_NAME, 0L));
+        }
+        long compactionInterval = props.getLong(Const.SUBSCRIPTIONS_COMPACTION_INTERVAL_PROPERTY_NAME, 0L);
+        if (compactionInterval > 0) {
+            startCompactor(compactionInterval,
+                    props.getInt(Const.SUBSCRIPTIONS_COMPACTION_DEAD_PERCENT_PROPERTY_NAME, DEFAULT_COMPACTION_DEAD_PERCENT));
+        }
+    }
+
+    /**
+     * @param shards           number of partitions for the topic filters with a literal first level,
+     *                         each one is updated with its own compareAndSet.
+     * @param matchesCacheSize max number of published topics whose matching subscriptions are
+     *                         cached, 0 disables the cache.
+     */
+    public SubscriptionsStore(int shards, long matchesCacheSize) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("At least one shard is needed, was " + shards);
+        }
+        m_wildcardShard = shards;
+        m_shards = new AtomicReferenceArray<TreeNode>(shards + 1);
+        for (int i = 0; i < m_shards.length(); i++) {
+            m_shards.set(i, new TreeNode());
+        }
+        m_casRetries = new AtomicLongArray(shards + 1);
+        m_generations = new AtomicLongArray(shards + 1);
+        m_matchesCache = matchesCacheSize > 0
+                ? CacheBuilder.newBuilder().maximumSize(matchesCacheSize).recordStats().<String, CachedMatch>build()
+                : null;
+    }
 
     /**
      * Initialize the subscription tree with the list of subscriptions.
      * Maintained for compatibility reasons.
+     *
+     * If a valid snapshot is enabled it takes precedence: the sessions store isn't read, so
+     * the subscriptions stored without going through this instance aren't loaded. Delete the
+     * snapshot directory to reload them from the sessions store, a new snapshot is written then.
      */
     public void init(ISessionsStore sessionsStore) {
         LOG.debug("init invoked");
-        m_sessionsStore = sessionsStore;
-        List<ClientTopicCouple> subscriptions = sessionsStore.listAllSubscriptions();
+        final long start = System.currentTimeMillis();
+        final SubscriptionsSnapshot snapshot = m_snapshot;
+        List<Subscription> fromSnapshot = snapshot == null ? null : snapshot.load();
+        if (fromSnapshot != null) {
+            addAllToTree(fromSnapshot);
+            LOG.info("Loaded {} subscriptions from the snapshot in {} ms", fromSnapshot.size(),
+                    System.currentTimeMillis() - start);
+            return;
+        }
+        List<ClientTopicCouple> storedSubscriptions = sessionsStore.listAllSubscriptions();
         //reload any subscriptions persisted
         if (LOG.isDebugEnabled()) {
             LOG.debug("Reloading all stored subscriptions...subscription tree before {}", dumpTree());
         }
 
-        for (ClientTopicCouple clientTopic : subscriptions) {
-            LOG.debug("Re-subscribing {} to topic {}", clientTopic.clientID, clientTopic.topicFilter);
-            add(clientTopic);
+        List<Subscription> toLoad = Lists.newArrayListWithCapacity(storedSubscriptions.size());
+        for (ClientTopicCouple clientTopic : storedSubscriptions) {
+            Subscription sub = sessionsStore.getSubscription(clientTopic);
+            if (sub == null) {
+                LOG.warn("Can't find the stored subscription for {}, skipped", clientTopic);
+                continue;
+            }
+            toLoad.add(sub);
         }
+        addAllToTree(toLoad);
+        LOG.info("Loaded {} stored subscriptions in {} ms", toLoad.size(), System.currentTimeMillis() - start);
         if (LOG.isTraceEnabled()) {
             LOG.trace("Finished loading. Subscription tree after {}", dumpTree());
         }
+        if (snapshot != null) {
+            //so the next start doesn't scan the sessions store
+            writeSnapshot();
+        }
+    }
+
+    /**
+     * Add a bulk of subscriptions. The sub tree of every shard is built in place in a single
+     * pass, the shards in parallel, and then published with one swap of its root.
+     */
+    public void addAll(Collection<Subscription> newSubscriptions) {
+        final Lock lock = m_snapshotLock.readLock();
+        lock.lock();
+        try {
+            List<String> clientIDs = Lists.newArrayListWithCapacity(newSubscriptions.size());
+            for (Subscription sub : newSubscriptions) {
+                clientIDs.add(sub.clientId);
+            }
+            List<Lock> clientLocks = lockClients(clientIDs);
+            try {
+                addAllToTree(newSubscriptions);
+                final SubscriptionsSnapshot snapshot = m_snapshot;
+                if (snapshot != null) {
+                    for (Subscription sub : newSubscriptions) {
+                        snapshot.journalAdd(sub);
+                    }
+                }
+            } finally {
+                unlock(clientLocks);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addAllToTree(Collection<Subscription> newSubscriptions) {
+        final List<List<Subscription>> byShard = Lists.newArrayListWithCapacity(m_shards.length());
+        for (int i = 0; i < m_shards.length(); i++) {
+            byShard.add(Lists.<Subscription>newArrayList());
+        }
+        Map<String, List<Subscription>> exactByFilter = Maps.newHashMap();
+        for (Subscription newSubscription : newSubscriptions) {
+            Subscription sub = registered(newSubscription);
+            if (isWildcard(sub.topicFilter)) {
+                byShard.get(shardFor(sub.topicFilter)).add(sub);
+                continue;
+            }
+            String exactFilter = matchingFilter(sub.topicFilter);
+            List<Subscription> exact = exactByFilter.get(exactFilter);
+            if (exact == null) {
+                exact = Lists.newArrayList();
+                exactByFilter.put(exactFilter, exact);
+            }
+            exact.add(sub);
+        }
+        for (Map.Entry<String, List<Subscription>> entry : exactByFilter.entrySet()) {
+            addExact(entry.getKey(), entry.getValue());
+        }
+
+        List<ForkJoinTask<?>> builds = Lists.newArrayList();
+        for (int i = 0; i < m_shards.length(); i++) {
+            final int shard = i;
+            if (byShard.get(shard).isEmpty()) {
+                continue;
+            }
+            builds.add(ForkJoinTask.adapt(new Runnable() {
+                @Override
+                public void run() {
+                    TreeNode oldRoot;
+                    TreeNode newRoot;
+                    do {
+                        oldRoot = m_shards.get(shard);
+                        newRoot = addToPaths(oldRoot, byShard.get(shard));
+                        //spin lock repeating till we can, swap root, if can't swap just re-do the operation
+                    } while (!swapShard(shard, oldRoot, newRoot));
+                }
+            }));
+        }
+        ForkJoinTask.invokeAll(builds);
+
+        for (Subscription sub : newSubscriptions) {
+            indexFilter(sub.clientId, sub.topicFilter);
+        }
     }
 
-    public void add(ClientTopicCouple newSubscription) {
+    /**
+     * Add the subscription to the tree, if the client was already subscribed to the same
+     * topic filter the stored subscription (and so its qos) is replaced.
+     */
+    public void add(Subscription subscription) {
+        final Lock lock = m_snapshotLock.readLock();
+        lock.lock();
+        try {
+            final Lock clientLock = m_clientLocks.get(subscription.clientId);
+            clientLock.lock();
+            try {
+                addToTree(subscription);
+                final SubscriptionsSnapshot snapshot = m_snapshot;
+                if (snapshot != null) {
+                    snapshot.journalAdd(subscription);
+                }
+            } finally {
+                clientLock.unlock();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addToTree(Subscription subscription) {
+        final Subscription newSubscription = registered(subscription);
+        if (!isWildcard(newSubscription.topicFilter)) {
+            addExact(matchingFilter(newSubscription.topicFilter), Collections.singletonList(newSubscription));
+            indexFilter(newSubscription.clientId, newSubscription.topicFilter);
+            return;
+        }
+
+        final int shard = shardFor(newSubscription.topicFilter);
+        final List<Token> tokens = parseFilter(newSubscription.topicFilter);
         TreeNode oldRoot;
         NodeCouple couple;
         do {
-            oldRoot = subscriptions.get();
-            couple = recreatePath(newSubscription.topicFilter, oldRoot);
-            couple.createdNode.addSubscription(newSubscription); //createdNode could be null?
+            oldRoot = m_shards.get(shard);
+            couple = recreatePath(tokens, oldRoot);
+            addToLeaf(couple.root, tokens, couple.createdNode, newSubscription);
             //spin lock repeating till we can, swap root, if can't swap just re-do the operation
-        } while (!subscriptions.compareAndSet(oldRoot, couple.root));
+        } while (!swapShard(shard, oldRoot, couple.root));
+        indexFilter(newSubscription.clientId, newSubscription.topicFilter);
         LOG.debug("root ref {}, original root was {}", couple.root, oldRoot);
     }
 
 
+    /**
+     * @return a copy of the subscription bound to the handle of its client, registering it.
+     */
+    private Subscription registered(Subscription sub) {
+        ClientRegistry.Handle handle = m_clients.register(sub.clientId);
+        Subscription registered = new Subscription(sub);
+        registered.clientId = handle.clientID;
+        registered.setClientHandle(handle.id);
+        return registered;
+    }
+
     protected NodeCouple recreatePath(String topic, final TreeNode oldRoot) {
-        List<Token> tokens = Lists.newArrayList();
+        return recreatePath(parseFilter(topic), oldRoot);
+    }
+
+    private static List<Token> parseFilter(String topicFilter) {
         try {
-            tokens = parseTopic(topic);
+            return parseTopic(matchingFilter(topicFilter));
         } catch (ParseException ex) {
             //TODO handle the parse exception
             LOG.error(null, ex);
+            return Collections.emptyList();
         }
+    }
 
+    private NodeCouple recreatePath(List<Token> tokens, final TreeNode oldRoot) {
         final TreeNode newRoot = oldRoot.copy();
         TreeNode parent = newRoot;
         TreeNode current = newRoot;
@@ -171,31 +635,477 @@ public class SubscriptionsStore {
     }
 
     public void removeSubscription(String topic, String clientID) {
+        final Lock lock = m_snapshotLock.readLock();
+        lock.lock();
+        try {
+            final Lock clientLock = m_clientLocks.get(clientID);
+            clientLock.lock();
+            try {
+                removeFromTree(topic, clientID);
+                final SubscriptionsSnapshot snapshot = m_snapshot;
+                if (snapshot != null) {
+                    snapshot.journalRemove(clientID, topic);
+                }
+            } finally {
+                clientLock.unlock();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void removeFromTree(String topic, String clientID) {
+        if (!isWildcard(topic)) {
+            removeExact(topic, clientID);
+            unindexFilter(clientID, topic);
+            return;
+        }
+
+        final int shard = shardFor(topic);
+        final List<ClientTopicCouple> toRemove = Collections.singletonList(new ClientTopicCouple(clientID, topic));
         TreeNode oldRoot;
-        NodeCouple couple;
+        TreeNode newRoot;
         do {
-            oldRoot = subscriptions.get();
-            couple = recreatePath(topic, oldRoot);
-
-            couple.createdNode.remove(new ClientTopicCouple(clientID, topic));
+            oldRoot = m_shards.get(shard);
+            newRoot = removeFromPaths(oldRoot, toRemove);
             //spin lock repeating till we can, swap root, if can't swap just re-do the operation
-        } while (!subscriptions.compareAndSet(oldRoot, couple.root));
+        } while (newRoot != oldRoot && !swapShard(shard, oldRoot, newRoot));
+        unindexFilter(clientID, topic);
     }
 
     /**
-     * Visit the topics tree to remove matching subscriptions with clientID.
-     * It's a mutating structure operation so create a new subscription tree (partial or total).
+     * Remove all the subscriptions of clientID.
+     * Only the paths of the topic filters the client subscribed are copied in the new tree.
      */
     public void removeForClient(String clientID) {
-        TreeNode oldRoot;
-        TreeNode newRoot;
+        removeForClients(Collections.singletonList(clientID));
+    }
+
+    /**
+     * Remove all the subscriptions of a batch of clients, applying the whole batch with a
+     * single swap of the root of every shard involved.
+     */
+    public void removeForClients(Collection<String> clientIDs) {
+        final Lock lock = m_snapshotLock.readLock();
+        lock.lock();
+        try {
+            List<Lock> clientLocks = lockClients(clientIDs);
+            try {
+                removeClientsFromTree(clientIDs);
+                final SubscriptionsSnapshot snapshot = m_snapshot;
+                if (snapshot != null) {
+                    for (String clientID : clientIDs) {
+                        snapshot.journalRemoveClient(clientID);
+                    }
+                }
+            } finally {
+                unlock(clientLocks);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lock the stripes of the clients, each once and in the order of the stripes, so the
+     * concurrent bulk changes can't deadlock.
+     */
+    private List<Lock> lockClients(Collection<String> clientIDs) {
+        Set<Lock> stripes = Collections.newSetFromMap(new IdentityHashMap<Lock, Boolean>());
+        List<Lock> locked = Lists.newArrayList();
+        for (Lock stripe : m_clientLocks.bulkGet(clientIDs)) {
+            if (stripes.add(stripe)) {
+                stripe.lock();
+                locked.add(stripe);
+            }
+        }
+        return locked;
+    }
+
+    private static void unlock(List<Lock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).unlock();
+        }
+    }
+
+    private void removeClientsFromTree(Collection<String> clientIDs) {
+        Map<Integer, List<ClientTopicCouple>> toRemoveByShard = Maps.newHashMap();
+        List<String> removedClients = Lists.newArrayList();
+        for (String clientID : clientIDs) {
+            Set<String> filters = m_clientFilters.remove(clientID);
+            if (filters == null) {
+                continue;
+            }
+            removedClients.add(clientID);
+            for (String topicFilter : filters) {
+                if (!isWildcard(topicFilter)) {
+                    removeExact(topicFilter, clientID);
+                    continue;
+                }
+                int shard = shardFor(topicFilter);
+                List<ClientTopicCouple> toRemove = toRemoveByShard.get(shard);
+                if (toRemove == null) {
+                    toRemove = Lists.newArrayList();
+                    toRemoveByShard.put(shard, toRemove);
+                }
+                toRemove.add(new ClientTopicCouple(clientID, topicFilter));
+            }
+        }
+
+        for (Map.Entry<Integer, List<ClientTopicCouple>> entry : toRemoveByShard.entrySet()) {
+            final int shard = entry.getKey();
+            TreeNode oldRoot;
+            TreeNode newRoot;
+            do {
+                oldRoot = m_shards.get(shard);
+                newRoot = removeFromPaths(oldRoot, entry.getValue());
+                //spin lock repeating till we can, swap root, if can't swap just re-do the operation
+            } while (newRoot != oldRoot && !swapShard(shard, oldRoot, newRoot));
+        }
+        //only once no subscription in the tree carries them
+        for (String clientID : removedClients) {
+            m_clients.unregister(clientID);
+        }
+    }
+
+    /**
+     * Create a new tree without the given subscriptions, copying only the nodes on their paths
+     * and each of them at most once. Paths that doesn't exist are skipped, not created, and
+     * the branches left without subscriptions are pruned.
+     *
+     * @return oldRoot if none of the subscriptions was in the tree.
+     */
+    private TreeNode removeFromPaths(TreeNode oldRoot, List<ClientTopicCouple> toRemove) {
+        final TreeNode newRoot = oldRoot.copy();
+        Set<TreeNode> owned = Collections.newSetFromMap(new IdentityHashMap<TreeNode, Boolean>());
+        boolean removed = false;
+        for (ClientTopicCouple couple : toRemove) {
+            List<Token> tokens;
+            try {
+                tokens = parseTopic(matchingFilter(couple.topicFilter));
+            } catch (ParseException ex) {
+                LOG.error(null, ex);
+                continue;
+            }
+
+            if (!removed && !existsPath(newRoot, tokens)) {
+                //don't copy anything till there is something to remove
+                continue;
+            }
+            TreeNode leaf = ownedPath(newRoot, tokens, owned, false);
+            if (leaf != null && removeFromLeaf(newRoot, tokens, leaf, couple.clientID, couple.topicFilter)) {
+                removed = true;
+                prunePath(newRoot, tokens);
+            }
+        }
+        return removed ? newRoot : oldRoot;
+    }
+
+    private static boolean existsPath(TreeNode root, List<Token> tokens) {
+        TreeNode current = root;
+        for (int i = 0; i < tokens.size() && current != null; i++) {
+            current = current.childWithToken(tokens.get(i));
+        }
+        return current != null;
+    }
+
+    /**
+     * Detach the top most node of the path of tokens without subscriptions in its sub tree,
+     * the nodes of the path has to be owned by the tree being built.
+     */
+    private static void prunePath(TreeNode root, List<Token> tokens) {
+        TreeNode current = root;
+        for (Token token : tokens) {
+            TreeNode child = current.childWithToken(token);
+            if (child == null) {
+                return;
+            }
+            if (child.size() == 0) {
+                current.removeChild(token);
+                return;
+            }
+            current = child;
+        }
+    }
+
+    /**
+     * Create a new tree with all the given subscriptions added, building it in place instead
+     * of copying the path from the root for each one of them.
+     */
+    private TreeNode addToPaths(TreeNode oldRoot, List<Subscription> toAdd) {
+        final TreeNode newRoot = oldRoot.copy();
+        Set<TreeNode> owned = Collections.newSetFromMap(new IdentityHashMap<TreeNode, Boolean>());
+        for (Subscription sub : toAdd) {
+            List<Token> tokens;
+            try {
+                tokens = parseTopic(matchingFilter(sub.topicFilter));
+            } catch (ParseException ex) {
+                LOG.error(null, ex);
+                continue;
+            }
+
+            addToLeaf(newRoot, tokens, ownedPath(newRoot, tokens, owned, true), sub);
+        }
+        return newRoot;
+    }
+
+    /**
+     * Walk the path of tokens under newRoot and return its last node. The nodes still shared
+     * with the published tree are copied, the ones already in owned belong only to the tree
+     * being built and are reused as they are.
+     *
+     * @param create if the missing nodes has to be created, else null is returned.
+     */
+    private static TreeNode ownedPath(TreeNode newRoot, List<Token> tokens, Set<TreeNode> owned, boolean create) {
+        TreeNode current = newRoot;
+        for (Token token : tokens) {
+            TreeNode child = current.childWithToken(token);
+            if (child == null) {
+                if (!create) {
+                    return null;
+                }
+                child = new TreeNode();
+                child.setToken(token);
+                current.addChild(child);
+                owned.add(child);
+            } else if (!owned.contains(child)) {
+                child = child.copy();
+                current.addChild(child);
+                owned.add(child);
+            }
+            current = child;
+        }
+        return current;
+    }
+
+    private static void addToLeaf(TreeNode root, List<Token> tokens, TreeNode leaf, Subscription sub) {
+        final int sizeBefore = leaf.ownSize();
+        final boolean subscribedBefore = leaf.hasSubscriptions();
+        leaf.addSubscription(sub);
+        addToCounts(root, tokens, leaf.ownSize() - sizeBefore, subscribedBefore ? 0 : 1);
+    }
+
+    /**
+     * @return true if the subscription was on the leaf.
+     */
+    private static boolean removeFromLeaf(TreeNode root, List<Token> tokens, TreeNode leaf, String clientID,
+                                          String topicFilter) {
+        final int sizeBefore = leaf.ownSize();
+        final boolean subscribedBefore = leaf.hasSubscriptions();
+        leaf.remove(clientID, topicFilter);
+        final int removed = sizeBefore - leaf.ownSize();
+        addToCounts(root, tokens, -removed, subscribedBefore && !leaf.hasSubscriptions() ? -1 : 0);
+        return removed > 0;
+    }
+
+    /**
+     * Update the counters of all the nodes on the path of tokens, root and last node included.
+     * The nodes has to be owned by the tree being built.
+     */
+    private static void addToCounts(TreeNode root, List<Token> tokens, int subscriptions, int filters) {
+        if (subscriptions == 0 && filters == 0) {
+            return;
+        }
+        TreeNode current = root;
+        current.addToCounts(subscriptions, filters);
+        for (Token token : tokens) {
+            current = current.childWithToken(token);
+            current.addToCounts(subscriptions, filters);
+        }
+    }
+
+    /**
+     * Add the subscriptions to the leaf of a filter without wildcards, replacing the leaf.
+     *
+     * @param topicFilter the filter the subscriptions match, without the shared prefix.
+     */
+    private void addExact(String topicFilter, Collection<Subscription> toAdd) {
+        TreeNode oldLeaf;
+        TreeNode newLeaf;
+        boolean swapped;
         do {
-            oldRoot = subscriptions.get();
-            newRoot = oldRoot.removeClientSubscriptions(clientID);
-            //spin lock repeating till we can, swap root, if can't swap just re-do the operation
-        } while (!subscriptions.compareAndSet(oldRoot, newRoot));
+            oldLeaf = m_exactSubscriptions.get(topicFilter);
+            newLeaf = oldLeaf == null ? new TreeNode() : oldLeaf.copy();
+            for (Subscription sub : toAdd) {
+                newLeaf.addSubscription(sub);
+            }
+            swapped = oldLeaf == null
+                    ? m_exactSubscriptions.putIfAbsent(topicFilter, newLeaf) == null
+                    : m_exactSubscriptions.replace(topicFilter, oldLeaf, newLeaf);
+        } while (!swapped);
+        addExactSize(topicFilter, newLeaf.ownSize() - (oldLeaf == null ? 0 : oldLeaf.ownSize()));
+    }
+
+    /**
+     * Remove the subscription from the leaf of a filter without wildcards, the leaf is dropped
+     * when nobody is subscribed anymore.
+     */
+    private void removeExact(String topicFilter, String clientID) {
+        final String exactFilter = matchingFilter(topicFilter);
+        TreeNode oldLeaf;
+        TreeNode newLeaf;
+        boolean swapped;
+        do {
+            oldLeaf = m_exactSubscriptions.get(exactFilter);
+            if (oldLeaf == null) {
+                return;
+            }
+            newLeaf = oldLeaf.copy();
+            newLeaf.remove(clientID, topicFilter);
+            swapped = newLeaf.hasSubscriptions()
+                    ? m_exactSubscriptions.replace(exactFilter, oldLeaf, newLeaf)
+                    : m_exactSubscriptions.remove(exactFilter, oldLeaf);
+        } while (!swapped);
+        addExactSize(exactFilter, newLeaf.ownSize() - oldLeaf.ownSize());
+    }
+
+    private void addExactSize(String exactFilter, int delta) {
+        if (delta != 0) {
+            m_exactSize.addAndGet(delta);
+            m_exactSizeByFirstLevel.addAndGet(firstLevel(exactFilter), delta);
+        }
+    }
+
+    private static String firstLevel(String filter) {
+        int end = filter.indexOf('/');
+        return end < 0 ? filter : filter.substring(0, end);
+    }
+
+    /**
+     * @return true if the filter, or the one of a shared subscription, contains wildcards.
+     */
+    static boolean isWildcard(String topicFilter) {
+        String filter = matchingFilter(topicFilter);
+        return filter.indexOf('#') >= 0 || filter.indexOf('+') >= 0;
+    }
+
+    static boolean isShared(String topicFilter) {
+        return topicFilter.startsWith(SHARED_PREFIX);
+    }
+
+    /**
+     * @return the group of the shared subscription filter $share/{group}/{filter}.
+     */
+    static String sharedGroupName(String topicFilter) {
+        int end = topicFilter.indexOf('/', SHARED_PREFIX.length());
+        return end < 0 ? topicFilter.substring(SHARED_PREFIX.length()) : topicFilter.substring(SHARED_PREFIX.length(), end);
+    }
+
+    /**
+     * @return the filter used to match the topics, for shared subscriptions the one after the
+     * group name, else the topicFilter itself.
+     */
+    static String matchingFilter(String topicFilter) {
+        if (!isShared(topicFilter)) {
+            return topicFilter;
+        }
+        int end = topicFilter.indexOf('/', SHARED_PREFIX.length());
+        return end < 0 ? "" : topicFilter.substring(end + 1);
+    }
+
+    private boolean swapShard(int shard, TreeNode oldRoot, TreeNode newRoot) {
+        if (m_shards.compareAndSet(shard, oldRoot, newRoot)) {
+            m_generations.incrementAndGet(shard);
+            return true;
+        }
+        m_casRetries.incrementAndGet(shard);
+        return false;
     }
 
+    /**
+     * Select the shard of a topic filter by its first level, without parsing it.
+     */
+    int shardFor(String topicFilter) {
+        return shardForTopic(matchingFilter(topicFilter));
+    }
+
+    /**
+     * Select the shard of a published topic by its first level, without parsing it. Unlike
+     * {@link #shardFor(String)} a topic starting with $share/ is taken as is, as the matching does.
+     */
+    int shardForTopic(String topic) {
+        //same as the hashCode of the first level name, so it's coherent with shardFor(Token)
+        int hash = 0;
+        int i = 0;
+        for (; i < topic.length(); i++) {
+            char c = topic.charAt(i);
+            if (c == '/') {
+                break;
+            }
+            hash = 31 * hash + c;
+        }
+        if (i == 1 && (topic.charAt(0) == '#' || topic.charAt(0) == '+')) {
+            return m_wildcardShard;
+        }
+        return shardForHash(hash);
+    }
+
+    int shardFor(Token firstLevel) {
+        if (firstLevel == Token.MULTI || firstLevel == Token.SINGLE) {
+            return m_wildcardShard;
+        }
+        return shardForHash(firstLevel.name().hashCode());
+    }
+
+    private int shardForHash(int hash) {
+        //spread the bits, the first levels are often short and similar
+        hash ^= (hash >>> 16);
+        return (hash & 0x7FFFFFFF) % m_wildcardShard;
+    }
+
+    public int shardsCount() {
+        return m_shards.length();
+    }
+
+    /**
+     * @return the number of compareAndSet lost on the root of the shard, the last shard is
+     * the one of the filters starting with a wildcard.
+     */
+    public long casRetries(int shard) {
+        return m_casRetries.get(shard);
+    }
+
+    public void setSharedSubscriptionStrategy(SharedSubscriptionStrategy strategy) {
+        m_sharedStrategy = strategy;
+    }
+
+    public void setInflightCounter(InflightCounter inflightCounter) {
+        m_inflightCounter = inflightCounter;
+    }
+
+    /**
+     * @return the counters of the matches cache, null if it's disabled.
+     */
+    public MatchesCacheStats matchesCacheStats() {
+        if (m_matchesCache == null) {
+            return null;
+        }
+        return new MatchesCacheStats(m_cacheHits.get(), m_cacheMisses.get(), m_cacheInvalidations.get(),
+                m_matchesCache.stats().evictionCount(), m_matchesCache.size());
+    }
+
+    private void indexFilter(String clientID, String topicFilter) {
+        Set<String> filters = m_clientFilters.get(clientID);
+        if (filters == null) {
+            Set<String> newFilters = Sets.newConcurrentHashSet();
+            filters = m_clientFilters.putIfAbsent(clientID, newFilters);
+            if (filters == null) {
+                filters = newFilters;
+            }
+        }
+        filters.add(topicFilter);
+    }
+
+    private void unindexFilter(String clientID, String topicFilter) {
+        Set<String> filters = m_clientFilters.get(clientID);
+        if (filters == null) {
+            return;
+        }
+        filters.remove(topicFilter);
+        if (filters.isEmpty() && m_clientFilters.remove(clientID, filters)) {
+            m_clients.unregister(clientID);
+        }
+    }
 
     /**
      * Given a topic string return the clients subscriptions that matches it.
@@ -203,47 +1113,396 @@ public class SubscriptionsStore {
      * listeners subscriptions, and not topic publishing.
      */
     public List<Subscription> matches(String topic) {
-        List<Token> tokens;
+        List<Subscription> result = Lists.newArrayList();
+        matches(topic, result);
+        return result;
+    }
+
+    /**
+     * Same as {@link #matches(String)} but the matching subscriptions are appended to the
+     * given sink, so a caller that reuses it doesn't produce garbage for the results.
+     */
+    public void matches(String topic, List<Subscription> sink) {
+        MatchCursor cursor = acquireCursor();
+        cursor.listSink.target = sink;
+        matches(topic, MqttQoS.EXACTLY_ONCE, cursor.listSink, cursor);
+    }
+
+    /**
+     * Push to the sink every subscription matching the topic, one for each client, without
+     * collecting them. The overlapping filters of a client are resolved with per thread
+     * structures reused by every match.
+     *
+     * @param publishedQos the qos of the published message, that caps the effective one.
+     */
+    public void matches(String topic, MqttQoS publishedQos, MatchSink sink) {
+        matches(topic, publishedQos, sink, acquireCursor());
+    }
+
+    private static MatchCursor acquireCursor() {
+        MatchCursor cursor = MATCH_CURSOR.get();
+        if (cursor.busy) {
+            return new MatchCursor();
+        }
+        cursor.busy = true;
+        return cursor;
+    }
+
+    private void matches(String topic, MqttQoS publishedQos, MatchSink sink, MatchCursor cursor) {
         try {
-            tokens = parseTopic(topic);
+            if (m_matchesCache == null) {
+                if (collectMatches(topic, m_exactSubscriptions.get(topic), cursor)) {
+                    deliver(topic, cursor.matchingSubs, cursor.matchingGroups, cursor, publishedQos, sink);
+                }
+                return;
+            }
+
+            //read the stamps before the structures, at worst a result is stamped older than it is
+            final long shardGeneration = m_generations.get(shardForTopic(topic));
+            final long wildcardGeneration = m_generations.get(m_wildcardShard);
+            final TreeNode exactLeaf = m_exactSubscriptions.get(topic);
+            CachedMatch cached = m_matchesCache.getIfPresent(topic);
+            if (cached != null) {
+                if (cached.isValid(shardGeneration, wildcardGeneration, exactLeaf)) {
+                    m_cacheHits.incrementAndGet();
+                    deliver(topic, cached.subscriptions, cached.groups, cursor, publishedQos, sink);
+                    return;
+                }
+                m_cacheInvalidations.incrementAndGet();
+            }
+            m_cacheMisses.incrementAndGet();
+
+            if (collectMatches(topic, exactLeaf, cursor)) {
+                //the member of the shared groups is selected at every publish, so the groups are cached
+                m_matchesCache.put(topic, new CachedMatch(shardGeneration, wildcardGeneration, exactLeaf,
+                        ImmutableList.copyOf(cursor.matchingSubs), ImmutableList.copyOf(cursor.matchingGroups)));
+                deliver(topic, cursor.matchingSubs, cursor.matchingGroups, cursor, publishedQos, sink);
+            }
+        } finally {
+            cursor.clear();
+            cursor.busy = false;
+        }
+    }
+
+    /**
+     * Collect in the cursor the subscriptions matching the topic, deduplicated by client, and
+     * the shared groups matching it. The subscriptions of the filters without wildcards are
+     * taken from exactLeaf.
+     *
+     * @return false if the topic is not valid.
+     */
+    private boolean collectMatches(String topic, TreeNode exactLeaf, MatchCursor cursor) {
+        try {
+            cursor.tokenizer.tokenize(topic);
         } catch (ParseException ex) {
             //TODO handle the parse exception
             LOG.error(null, ex);
-            return Collections.emptyList();
+            return false;
         }
 
-        Queue<Token> tokenQueue = new LinkedBlockingDeque<Token>(tokens);
-        List<ClientTopicCouple> matchingSubs = Lists.newArrayList();
-        subscriptions.get().matches(tokenQueue, matchingSubs);
+        Token[] tokens = cursor.tokenizer.tokens();
+        int length = cursor.tokenizer.length();
+        List<Subscription> matchingSubs = cursor.matchingSubs;
+        List<SharedGroup> matchingGroups = cursor.matchingGroups;
+        if (exactLeaf != null) {
+            exactLeaf.addAllTo(matchingSubs, matchingGroups);
+        }
+        //the sub tree of the first level and the one of the wildcard filters
+        int shard = shardFor(tokens[0]);
+        m_shards.get(shard).matches(tokens, 0, length, matchingSubs, matchingGroups);
+        if (shard != m_wildcardShard) {
+            m_shards.get(m_wildcardShard).matches(tokens, 0, length, matchingSubs, matchingGroups);
+        }
 
         //remove the overlapping subscriptions, selecting ones with greatest qos
-        Map<String, Subscription> subsForClient = Maps.newHashMap();
-        for (ClientTopicCouple matchingCouple : matchingSubs) {
-            Subscription existingSub = subsForClient.get(matchingCouple.clientID);
-            Subscription sub = m_sessionsStore.getSubscription(matchingCouple);
-            if (sub == null) {
-                //if the m_sessionStore hasn't the sub because the client disconnected
-                continue;
+        for (int i = 0; i < matchingSubs.size(); i++) {
+            cursor.mergeMaxQos(matchingSubs.get(i));
+        }
+        matchingSubs.clear();
+        cursor.drainMergedTo(matchingSubs);
+        return true;
+    }
+
+    /**
+     * Push to sink the subscriptions plus the member selected from every shared group, the
+     * latter merged with the other subscriptions of the same client.
+     */
+    private void deliver(String topic, List<Subscription> subs, List<SharedGroup> groups, MatchCursor cursor,
+                         MqttQoS publishedQos, MatchSink sink) {
+        if (groups.isEmpty()) {
+            for (int i = 0; i < subs.size(); i++) {
+                push(subs.get(i), publishedQos, sink);
             }
-            //update the selected subscriptions if not present or if has a greater qos
-            if (existingSub == null || existingSub.getRequestedQos().value() < sub.getRequestedQos().value()) {
-                subsForClient.put(matchingCouple.clientID, sub);
+            return;
+        }
+
+        for (int i = 0; i < subs.size(); i++) {
+            cursor.mergeMaxQos(subs.get(i));
+        }
+        for (int i = 0; i < groups.size(); i++) {
+            Subscription member = groups.get(i).select(m_sharedStrategy, topic, m_inflightCounter);
+            if (member != null) {
+                cursor.mergeMaxQos(member);
             }
         }
-        return new ArrayList<Subscription>(subsForClient.values());
+        cursor.pushMergedTo(sink, publishedQos);
+    }
+
+    private static void push(Subscription sub, MqttQoS publishedQos, MatchSink sink) {
+        MqttQoS requestedQos = sub.getRequestedQos();
+        sink.onMatch(sub, requestedQos.value() <= publishedQos.value() ? requestedQos : publishedQos);
     }
 
     public boolean contains(Subscription sub) {
         return !matches(sub.topicFilter).isEmpty();
     }
 
+    /**
+     * Check every intervalSeconds if some shard has to be compacted, see {@link #compact(int)}.
+     */
+    public synchronized void startCompactor(long intervalSeconds, final int deadPercent) {
+        scheduler().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact(deadPercent);
+                } catch (RuntimeException ex) {
+                    LOG.error("Compaction of the subscriptions tree failed", ex);
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Keep a snapshot of the subscriptions in the directory, loaded by {@link #init(ISessionsStore)}
+     * in place of the subscriptions of the sessions store, that isn't read then. Has to be
+     * invoked before the init.
+     *
+     * @param intervalSeconds period of the snapshot writes, the changes in the meantime are
+     *                        journaled. 0 writes it only on {@link #close()}.
+     */
+    public synchronized void enableSnapshot(String directory, long intervalSeconds) {
+        m_snapshot = new SubscriptionsSnapshot(new File(directory));
+        if (intervalSeconds > 0) {
+            scheduler().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    writeSnapshot();
+                }
+            }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Write the snapshot of the current subscriptions, if enabled. Only the capture of the shard
+     * roots holds the changes, the immutable nodes are written after.
+     */
+    public void writeSnapshot() {
+        final SubscriptionsSnapshot snapshot = m_snapshot;
+        if (snapshot == null) {
+            return;
+        }
+        synchronized (snapshot) {
+            final long start = System.currentTimeMillis();
+            List<TreeNode> roots = Lists.newArrayListWithCapacity(m_shards.length() + m_exactSubscriptions.size());
+            final Lock lock = m_snapshotLock.writeLock();
+            lock.lock();
+            try {
+                for (int i = 0; i < m_shards.length(); i++) {
+                    roots.add(m_shards.get(i));
+                }
+                roots.addAll(m_exactSubscriptions.values());
+                snapshot.rotateJournal();
+            } catch (IOException ex) {
+                LOG.error("Can't rotate the subscriptions journal, snapshot skipped", ex);
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            List<Subscription> subscriptions = Lists.newArrayList();
+            for (TreeNode root : roots) {
+                collectSubscriptions(root, subscriptions);
+            }
+            try {
+                snapshot.write(subscriptions);
+                LOG.info("Written the snapshot of {} subscriptions in {} ms", subscriptions.size(),
+                        System.currentTimeMillis() - start);
+            } catch (IOException ex) {
+                LOG.error("Can't write the subscriptions snapshot", ex);
+            }
+        }
+    }
+
+    private static void collectSubscriptions(TreeNode node, List<Subscription> subscriptions) {
+        subscriptions.addAll(node.subscriptions());
+        for (SharedGroup group : node.sharedGroups()) {
+            Collections.addAll(subscriptions, group.members);
+        }
+        for (TreeNode child : node.children()) {
+            collectSubscriptions(child, subscriptions);
+        }
+    }
+
+    private ScheduledExecutorService scheduler() {
+        if (m_scheduler == null) {
+            //daemon, the compactions and snapshots must not keep the broker alive
+            m_scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("subscriptions-maintenance-%d").setDaemon(true).build());
+        }
+        return m_scheduler;
+    }
+
+    /**
+     * Stop the background tasks and write the last snapshot, if enabled.
+     */
+    public synchronized void close() {
+        if (m_scheduler != null) {
+            m_scheduler.shutdown();
+            m_scheduler = null;
+            LOG.debug("Subscriptions scheduler is shutdown");
+        }
+        final SubscriptionsSnapshot snapshot = m_snapshot;
+        if (snapshot != null) {
+            writeSnapshot();
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Rebuild the shards where the dead nodes, the ones without subscriptions in their sub tree,
+     * are at least deadPercent of the nodes. The removals already prune the branches they empty,
+     * this catches the dead nodes left by any other path.
+     *
+     * @return the number of dead nodes dropped.
+     */
+    public int compact(int deadPercent) {
+        int dropped = 0;
+        for (int shard = 0; shard < m_shards.length(); shard++) {
+            TreeNode oldRoot;
+            int[] counts;
+            do {
+                oldRoot = m_shards.get(shard);
+                //nodes and dead nodes
+                counts = new int[2];
+                countNodes(oldRoot, false, counts);
+                if (counts[1] == 0 || counts[1] * 100L < (long) counts[0] * deadPercent) {
+                    counts[1] = 0;
+                    break;
+                }
+            } while (!swapShard(shard, oldRoot, withoutDeadNodes(oldRoot)));
+            if (counts[1] > 0) {
+                LOG.info("Compacted shard {} of the subscriptions tree, dropped {} dead nodes of {}",
+                        shard, counts[1], counts[0]);
+                dropped += counts[1];
+            }
+        }
+        return dropped;
+    }
+
+    private static void countNodes(TreeNode node, boolean dead, int[] counts) {
+        for (TreeNode child : node.children()) {
+            boolean deadChild = dead || child.size() == 0;
+            counts[0]++;
+            if (deadChild) {
+                counts[1]++;
+            }
+            countNodes(child, deadChild, counts);
+        }
+    }
+
+    /**
+     * @return node if there aren't dead nodes under it, else a copy without them that shares
+     * the sub trees without dead nodes.
+     */
+    private static TreeNode withoutDeadNodes(TreeNode node) {
+        TreeNode copy = null;
+        for (TreeNode child : node.children()) {
+            TreeNode newChild = child.size() == 0 ? null : withoutDeadNodes(child);
+            if (newChild == child) {
+                continue;
+            }
+            if (copy == null) {
+                copy = node.copy();
+            }
+            if (newChild == null) {
+                copy.removeChild(child.getToken());
+            } else {
+                copy.addChild(newChild);
+            }
+        }
+        return copy == null ? node : copy;
+    }
+
+    /**
+     * @return the number of subscriptions, the members of the shared ones included. It reads
+     * the counters maintained by the updates, so it's cheap to poll.
+     */
     public int size() {
-        return subscriptions.get().size();
+        long res = m_exactSize.get();
+        for (int i = 0; i < m_shards.length(); i++) {
+            res += m_shards.get(i).size();
+        }
+        return (int) res;
+    }
+
+    /**
+     * @return the number of distinct topic filters with at least a subscription, the ones of
+     * the shared subscriptions are counted without the group.
+     */
+    public long distinctFiltersCount() {
+        long res = m_exactSubscriptions.size();
+        for (int i = 0; i < m_shards.length(); i++) {
+            res += m_shards.get(i).filtersCount();
+        }
+        return res;
+    }
+
+    /**
+     * @return the number of subscriptions whose topic filter starts with the level, that could
+     * also be one of the wildcards.
+     */
+    public long firstLevelSize(String level) {
+        long res = m_exactSizeByFirstLevel.get(level);
+        //the wildcard nodes are found by their instances
+        Token token = Token.MULTI.name.equals(level) ? Token.MULTI
+                : Token.SINGLE.name.equals(level) ? Token.SINGLE : new Token(level);
+        TreeNode firstLevelNode = m_shards.get(shardFor(token)).childWithToken(token);
+        if (firstLevelNode != null) {
+            res += firstLevelNode.size();
+        }
+        return res;
+    }
+
+    /**
+     * @return the number of subscriptions by first level of the topic filter, the levels
+     * without subscriptions are omitted.
+     */
+    public Map<String, Long> firstLevelSizes() {
+        m_exactSizeByFirstLevel.removeAllZeros();
+        Map<String, Long> res = Maps.newHashMap(m_exactSizeByFirstLevel.asMap());
+        for (int i = 0; i < m_shards.length(); i++) {
+            for (TreeNode firstLevelNode : m_shards.get(i).children()) {
+                if (firstLevelNode.size() == 0) {
+                    continue;
+                }
+                String level = firstLevelNode.getToken().name();
+                Long exactSize = res.get(level);
+                res.put(level, (exactSize == null ? 0 : exactSize) + firstLevelNode.size());
+            }
+        }
+        return res;
     }
 
     public String dumpTree() {
         DumpTreeVisitor visitor = new DumpTreeVisitor();
-        bfsVisit(subscriptions.get(), visitor, 0);
+        for (Map.Entry<String, TreeNode> exact : m_exactSubscriptions.entrySet()) {
+            visitor.s += exact.getKey();
+            visitor.visit(exact.getValue(), 1);
+        }
+        for (int i = 0; i < m_shards.length(); i++) {
+            bfsVisit(m_shards.get(i), visitor, 0);
+        }
         return visitor.getResult();
     }
 
@@ -252,7 +1511,7 @@ public class SubscriptionsStore {
             return;
         }
         visitor.visit(node, deep);
-        for (TreeNode child : node.m_children) {
+        for (TreeNode child : node.children()) {
             bfsVisit(child, visitor, ++deep);
         }
     }
@@ -260,82 +1519,41 @@ public class SubscriptionsStore {
     /**
      * Verify if the 2 topics matching respecting the rules of MQTT Appendix A
      */
-    //TODO reimplement with iterators or with queues
     public static boolean matchTopics(String msgTopic, String subscriptionTopic) {
+        MatchCursor cursor = MATCH_CURSOR.get();
         try {
-            List<Token> msgTokens = SubscriptionsStore.parseTopic(msgTopic);
-            List<Token> subscriptionTokens = SubscriptionsStore.parseTopic(subscriptionTopic);
-            int i = 0;
-            for (; i < subscriptionTokens.size(); i++) {
-                Token subToken = subscriptionTokens.get(i);
-                if (subToken != Token.MULTI && subToken != Token.SINGLE) {
-                    if (i >= msgTokens.size()) {
-                        return false;
-                    }
-                    Token msgToken = msgTokens.get(i);
-                    if (!msgToken.equals(subToken)) {
-                        return false;
-                    }
-                } else {
-                    if (subToken == Token.MULTI) {
-                        return true;
-                    }
-                    if (subToken == Token.SINGLE) {
-                        //skip a step forward
-                    }
-                }
-            }
-            //if last token was a SINGLE then treat it as an empty
-//            if (subToken == Token.SINGLE && (i - msgTokens.size() == 1)) {
-//               i--;
-//            }
-            return i == msgTokens.size();
+            cursor.tokenizer.tokenize(msgTopic);
+            cursor.filterTokenizer.tokenize(subscriptionTopic);
         } catch (ParseException ex) {
             LOG.error(null, ex);
             throw new RuntimeException(ex);
         }
-    }
-
-    protected static List<Token> parseTopic(String topic) throws ParseException {
-        List<Token> res = Lists.newArrayList();
-        String[] splitted = topic.split("/");
-
-        if (splitted.length == 0) {
-            res.add(Token.EMPTY);
-        }
-
-        if (topic.endsWith("/")) {
-            //Add a fictious space 
-            String[] newSplitted = new String[splitted.length + 1];
-            System.arraycopy(splitted, 0, newSplitted, 0, splitted.length);
-            newSplitted[splitted.length] = "";
-            splitted = newSplitted;
-        }
-
-        for (int i = 0; i < splitted.length; i++) {
-            String s = splitted[i];
-            if (s.isEmpty()) {
-//                if (i != 0) {
-//                    throw new ParseException("Bad format of topic, expetec topic name between separators", i);
-//                }
-                res.add(Token.EMPTY);
-            } else if (s.equals("#")) {
-                //check that multi is the last symbol
-                if (i != splitted.length - 1) {
-                    throw new ParseException("Bad format of topic, the multi symbol (#) has to be the last one after a separator", i);
+        Token[] msgTokens = cursor.tokenizer.tokens();
+        int msgLength = cursor.tokenizer.length();
+        Token[] subscriptionTokens = cursor.filterTokenizer.tokens();
+        int subscriptionLength = cursor.filterTokenizer.length();
+        int i = 0;
+        for (; i < subscriptionLength; i++) {
+            Token subToken = subscriptionTokens[i];
+            if (subToken == Token.MULTI) {
+                return true;
+            }
+            //a SINGLE skips a step forward
+            if (subToken != Token.SINGLE) {
+                if (i >= msgLength) {
+                    return false;
+                }
+                if (!msgTokens[i].equals(subToken)) {
+                    return false;
                 }
-                res.add(Token.MULTI);
-            } else if (s.contains("#")) {
-                throw new ParseException("Bad format of topic, invalid subtopic name: " + s, i);
-            } else if (s.equals("+")) {
-                res.add(Token.SINGLE);
-            } else if (s.contains("+")) {
-                throw new ParseException("Bad format of topic, invalid subtopic name: " + s, i);
-            } else {
-                res.add(new Token(s));
             }
         }
+        return i == msgLength;
+    }
 
-        return res;
+    protected static List<Token> parseTopic(String topic) throws ParseException {
+        TopicTokenizer tokenizer = MATCH_CURSOR.get().filterTokenizer;
+        tokenizer.tokenize(topic);
+        return tokenizer.toList();
     }
 }
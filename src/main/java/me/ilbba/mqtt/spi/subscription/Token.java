@@ -72,4 +72,4 @@ public class Token {
     public String toString() {
         return name;
     }
-}
\ No newline at end of file
+}
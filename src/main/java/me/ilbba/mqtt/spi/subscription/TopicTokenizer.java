@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package me.ilbba.mqtt.spi.subscription;
+
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Split a topic (or a topic filter) in its level tokens with a single pass on its chars,
+ * validating the wildcards on the way. The tokens are kept in a buffer reused by the next
+ * tokenize, so an instance is meant to be reused by a single thread.
+ *
+ * The tokens of the levels already seen are kept in a small cache indexed by the hash of the
+ * level, so tokenizing a known topic doesn't allocate.
+ */
+final class TopicTokenizer {
+
+    private static final int CACHE_SIZE = 256;
+
+    private Token[] m_tokens = new Token[16];
+    private int m_length;
+    private final Token[] m_cache = new Token[CACHE_SIZE];
+
+    /**
+     * Tokenize the topic, the result is available through {@link #length()} and
+     * {@link #tokens()} till the next invocation.
+     */
+    void tokenize(String topic) throws ParseException {
+        m_length = 0;
+        int start = 0;
+        int hash = 0;
+        boolean wildcards = false;
+        final int topicLength = topic.length();
+        for (int i = 0; i <= topicLength; i++) {
+            char c = i < topicLength ? topic.charAt(i) : '/';
+            if (c != '/') {
+                hash = 31 * hash + c;
+                wildcards |= c == '#' || c == '+';
+                continue;
+            }
+
+            append(levelToken(topic, start, i, hash, wildcards, i == topicLength));
+            start = i + 1;
+            hash = 0;
+            wildcards = false;
+        }
+    }
+
+    int length() {
+        return m_length;
+    }
+
+    /**
+     * @return the buffer of the tokens, only the first {@link #length()} are valid.
+     */
+    Token[] tokens() {
+        return m_tokens;
+    }
+
+    List<Token> toList() {
+        return Arrays.asList(Arrays.copyOf(m_tokens, m_length));
+    }
+
+    private Token levelToken(String topic, int start, int end, int hash, boolean wildcards, boolean last)
+            throws ParseException {
+        final int levelLength = end - start;
+        if (levelLength == 0) {
+            return Token.EMPTY;
+        }
+        if (!wildcards) {
+            return literalToken(topic, start, levelLength, hash);
+        }
+
+        char first = topic.charAt(start);
+        if (levelLength == 1 && first == '#') {
+            //check that multi is the last symbol
+            if (!last) {
+                throw new ParseException("Bad format of topic, the multi symbol (#) has to be the last one after a separator", m_length);
+            }
+            return Token.MULTI;
+        }
+        if (levelLength == 1 && first == '+') {
+            return Token.SINGLE;
+        }
+        throw new ParseException("Bad format of topic, invalid subtopic name: " + topic.substring(start, end), m_length);
+    }
+
+    private Token literalToken(String topic, int start, int levelLength, int hash) {
+        final int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+        Token cached = m_cache[slot];
+        if (cached != null && cached.name.length() == levelLength
+                && topic.regionMatches(start, cached.name, 0, levelLength)) {
+            return cached;
+        }
+        Token token = new Token(topic.substring(start, start + levelLength));
+        m_cache[slot] = token;
+        return token;
+    }
+
+    private void append(Token token) {
+        if (m_length == m_tokens.length) {
+            m_tokens = Arrays.copyOf(m_tokens, m_tokens.length * 2);
+        }
+        m_tokens[m_length++] = token;
+    }
+}
@@ -15,18 +15,23 @@
  */
 package me.ilbba.mqtt.spi.subscription;
 
-import me.ilbba.mqtt.spi.iface.ISessionsStore.ClientTopicCouple;
-import com.google.common.collect.Lists;
-
 import java.util.*;
-import java.util.concurrent.LinkedBlockingQueue;
 
 class TreeNode {
 
     Token m_token;
-    List<TreeNode> m_children = Lists.newArrayList();
-    //TODO move to set of ClientIDthe set of clientIDs that has subscriptions to this topic
-    Set<ClientTopicCouple> m_subscriptions = new HashSet<ClientTopicCouple>();
+    //literal children indexed by token, the wildcard children have their own slots
+    PersistentHashMap<Token, TreeNode> m_children = PersistentHashMap.empty();
+    TreeNode m_singleChild;
+    TreeNode m_multiChild;
+    //clientID -> subscription to the topic filter ending on this node, qos included
+    PersistentHashMap<String, Subscription> m_subscriptions = PersistentHashMap.empty();
+    //group name -> members of the shared subscriptions to the topic filter ending on this node
+    PersistentHashMap<String, SharedGroup> m_sharedGroups = PersistentHashMap.empty();
+    //subscriptions (shared members included) and nodes with subscriptions in the sub tree rooted
+    //here, this node included. Updated by the store along the path of every change.
+    int m_subtreeSize;
+    int m_subtreeFilters;
 
     TreeNode() {
     }
@@ -39,23 +44,59 @@ class TreeNode {
         this.m_token = topic;
     }
 
-    void addSubscription(ClientTopicCouple s) {
-        m_subscriptions.add(s);
+    /**
+     * Add the subscription, replacing the one of the same client if already present.
+     * A shared subscription is added to the members of its group.
+     */
+    void addSubscription(Subscription s) {
+        if (!SubscriptionsStore.isShared(s.topicFilter)) {
+            m_subscriptions = m_subscriptions.plus(s.clientId, s);
+            return;
+        }
+        String groupName = SubscriptionsStore.sharedGroupName(s.topicFilter);
+        SharedGroup group = m_sharedGroups.get(groupName);
+        if (group == null) {
+            group = new SharedGroup(groupName);
+        }
+        m_sharedGroups = m_sharedGroups.plus(groupName, group.withMember(s));
     }
 
     void addChild(TreeNode child) {
-        m_children.add(child);
+        Token token = child.getToken();
+        if (token == Token.MULTI) {
+            m_multiChild = child;
+        } else if (token == Token.SINGLE) {
+            m_singleChild = child;
+        } else {
+            m_children = m_children.plus(token, child);
+        }
+    }
+
+    void removeChild(Token token) {
+        if (token == Token.MULTI) {
+            m_multiChild = null;
+        } else if (token == Token.SINGLE) {
+            m_singleChild = null;
+        } else {
+            m_children = m_children.minus(token);
+        }
     }
 
     /**
      * Creates a shallow copy of the current node.
-     * Copy the token and the children.
+     * Copy the token and the children, the persistent maps are shared and not copied since
+     * every update of the copy replaces them.
      */
     TreeNode copy() {
         final TreeNode copy = new TreeNode();
-        copy.m_children = Lists.newArrayList(m_children);
-        copy.m_subscriptions = new HashSet<ClientTopicCouple>(m_subscriptions);
+        copy.m_children = m_children;
+        copy.m_singleChild = m_singleChild;
+        copy.m_multiChild = m_multiChild;
+        copy.m_subscriptions = m_subscriptions;
+        copy.m_sharedGroups = m_sharedGroups;
         copy.m_token = m_token;
+        copy.m_subtreeSize = m_subtreeSize;
+        copy.m_subtreeFilters = m_subtreeFilters;
         return copy;
     }
 
@@ -64,39 +105,82 @@ class TreeNode {
      * null;
      */
     TreeNode childWithToken(Token token) {
-        for (TreeNode child : m_children) {
-            if (child.getToken().equals(token)) {
-                return child;
-            }
+        if (token == Token.MULTI) {
+            return m_multiChild;
         }
-
-        return null;
+        if (token == Token.SINGLE) {
+            return m_singleChild;
+        }
+        return m_children.get(token);
     }
 
+    /**
+     * Replace the child with the same token of newChild, the old child is left untouched
+     * so the trees that still refer it are not modified.
+     */
     void updateChild(TreeNode oldChild, TreeNode newChild) {
-        m_children.remove(oldChild);
-        m_children.add(newChild);
+        addChild(newChild);
+    }
+
+    /**
+     * Return all the children, wildcard ones included. Not intended for the matching path.
+     */
+    Collection<TreeNode> children() {
+        List<TreeNode> res = new ArrayList<TreeNode>(m_children.size() + 2);
+        m_children.addValuesTo(res);
+        if (m_singleChild != null) {
+            res.add(m_singleChild);
+        }
+        if (m_multiChild != null) {
+            res.add(m_multiChild);
+        }
+        return res;
+    }
+
+    Collection<Subscription> subscriptions() {
+        return m_subscriptions.values();
     }
 
-    Collection<ClientTopicCouple> subscriptions() {
-        return m_subscriptions;
+    Collection<SharedGroup> sharedGroups() {
+        return m_sharedGroups.values();
     }
 
-    public void remove(ClientTopicCouple clientTopicCouple) {
-        m_subscriptions.remove(clientTopicCouple);
+    /**
+     * Remove the subscription of clientID to topicFilter, that could be a shared one.
+     */
+    public void remove(String clientID, String topicFilter) {
+        if (!SubscriptionsStore.isShared(topicFilter)) {
+            m_subscriptions = m_subscriptions.minus(clientID);
+            return;
+        }
+        String groupName = SubscriptionsStore.sharedGroupName(topicFilter);
+        SharedGroup group = m_sharedGroups.get(groupName);
+        if (group == null) {
+            return;
+        }
+        group = group.withoutMember(clientID);
+        m_sharedGroups = group.isEmpty() ? m_sharedGroups.minus(groupName) : m_sharedGroups.plus(groupName, group);
     }
 
-    void matches(Queue<Token> tokens, List<ClientTopicCouple> matchingSubs) {
-        Token t = tokens.poll();
+    boolean hasSubscriptions() {
+        return !m_subscriptions.isEmpty() || !m_sharedGroups.isEmpty();
+    }
 
-        //check if t is null <=> tokens finished
-        if (t == null) {
-            matchingSubs.addAll(m_subscriptions);
+    /**
+     * Collect in matchingSubs the subscriptions that match the topic tokens, and in matchingGroups
+     * the shared groups, starting from the token at index level. The tokens array is only read,
+     * so sibling branches can share it.
+     */
+    void matches(Token[] tokens, int level, int length, List<Subscription> matchingSubs, List<SharedGroup> matchingGroups) {
+        //check if tokens finished
+        if (level == length) {
+            addAllTo(matchingSubs, matchingGroups);
             //check if it has got a MULTI child and add its subscriptions
-            for (TreeNode n : m_children) {
-                if (n.getToken() == Token.MULTI || n.getToken() == Token.SINGLE) {
-                    matchingSubs.addAll(n.subscriptions());
-                }
+            if (m_multiChild != null) {
+                m_multiChild.addAllTo(matchingSubs, matchingGroups);
+            }
+            if (m_singleChild != null) {
+                m_singleChild.addAllTo(matchingSubs, matchingGroups);
             }
 
             return;
@@ -104,54 +188,65 @@ class TreeNode {
 
         //we are on MULTI, than add subscriptions and return
         if (m_token == Token.MULTI) {
-            matchingSubs.addAll(m_subscriptions);
+            addAllTo(matchingSubs, matchingGroups);
             return;
         }
 
-        for (TreeNode n : m_children) {
-            if (n.getToken().match(t)) {
-                //Create a copy of token, else if navigate 2 sibling it
-                //consumes 2 elements on the queue instead of one
-                n.matches(new LinkedBlockingQueue(tokens), matchingSubs);
-                //TODO don't create a copy n.matches(tokens, matchingSubs);
-            }
+        Token t = tokens[level];
+        //wildcards in the published topic doesn't match anything
+        if (t == Token.MULTI || t == Token.SINGLE) {
+            return;
+        }
+
+        //visit only the child with the same token and the wildcard ones
+        TreeNode exact = m_children.get(t);
+        if (exact != null) {
+            exact.matches(tokens, level + 1, length, matchingSubs, matchingGroups);
+        }
+        if (m_singleChild != null) {
+            m_singleChild.matches(tokens, level + 1, length, matchingSubs, matchingGroups);
+        }
+        if (m_multiChild != null) {
+            m_multiChild.matches(tokens, level + 1, length, matchingSubs, matchingGroups);
+        }
+    }
+
+    void addAllTo(List<Subscription> matchingSubs, List<SharedGroup> matchingGroups) {
+        m_subscriptions.addValuesTo(matchingSubs);
+        if (!m_sharedGroups.isEmpty()) {
+            m_sharedGroups.addValuesTo(matchingGroups);
         }
     }
 
     /**
-     * Return the number of registered subscriptions
+     * Return the number of subscriptions registered on this node, the members of the shared ones included
      */
-    int size() {
+    int ownSize() {
         int res = m_subscriptions.size();
-        for (TreeNode child : m_children) {
-            res += child.size();
+        if (!m_sharedGroups.isEmpty()) {
+            for (SharedGroup group : sharedGroups()) {
+                res += group.members.length;
+            }
         }
         return res;
     }
 
+    void addToCounts(int subscriptions, int filters) {
+        m_subtreeSize += subscriptions;
+        m_subtreeFilters += filters;
+    }
+
     /**
-     * Create a copied subtree rooted on this node but purged of clientID's subscriptions.
+     * Return the number of registered subscriptions in the sub tree, without walking it
      */
-    TreeNode removeClientSubscriptions(String clientID) {
-        //collect what to delete and then delete to avoid ConcurrentModification
-        TreeNode newSubRoot = this.copy();
-        List<ClientTopicCouple> subsToRemove = Lists.newArrayList();
-        for (ClientTopicCouple s : newSubRoot.m_subscriptions) {
-            if (s.clientID.equals(clientID)) {
-                subsToRemove.add(s);
-            }
-        }
-
-        for (ClientTopicCouple s : subsToRemove) {
-            newSubRoot.m_subscriptions.remove(s);
-        }
+    int size() {
+        return m_subtreeSize;
+    }
 
-        //go deep
-        List<TreeNode> newChildren = new ArrayList<TreeNode>(newSubRoot.m_children.size());
-        for (TreeNode child : newSubRoot.m_children) {
-            newChildren.add(child.removeClientSubscriptions(clientID));
-        }
-        newSubRoot.m_children = newChildren;
-        return newSubRoot;
+    /**
+     * Return the number of distinct topic filters subscribed in the sub tree
+     */
+    int filtersCount() {
+        return m_subtreeFilters;
     }
 }
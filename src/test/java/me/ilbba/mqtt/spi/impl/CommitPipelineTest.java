@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package me.ilbba.mqtt.spi.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CommitPipelineTest {
+
+    //longer than any test, so only the batch size or the close commit
+    private static final long NEVER = 60000;
+
+    @Rule
+    public TemporaryFolder m_folder = new TemporaryFolder();
+
+    private DB m_db;
+    private CommitPipeline m_commits;
+
+    @Before
+    public void setUp() throws IOException {
+        m_db = DBMaker.newFileDB(new File(m_folder.getRoot(), "persistent_store")).make();
+    }
+
+    @After
+    public void tearDown() {
+        if (m_commits != null) {
+            m_commits.close();
+        }
+        m_db.close();
+    }
+
+    private CommitPipeline start(CommitMode mode, long interval, int maxBatchSize) {
+        m_commits = new CommitPipeline(m_db, mode, interval, maxBatchSize);
+        m_commits.start();
+        return m_commits;
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void syncModeCommitsEveryOperation() {
+        CommitPipeline commits = start(CommitMode.SYNC, NEVER, 100);
+        commits.operation();
+        commits.operation();
+        final AtomicBoolean durable = new AtomicBoolean();
+        commits.whenDurable(new Runnable() {
+            @Override
+            public void run() {
+                durable.set(true);
+            }
+        });
+
+        assertTrue(durable.get());
+        assertEquals(2, commits.stats().commits);
+        assertEquals(2, commits.stats().operations);
+        assertEquals(1, commits.stats().maxBatchSize);
+    }
+
+    @Test
+    public void asyncModeCommitsPeriodicallyWithoutWaitingForThem() throws InterruptedException {
+        CommitPipeline commits = start(CommitMode.ASYNC, 20, 100);
+        commits.operation();
+        commits.operation();
+        CountDownLatch durable = new CountDownLatch(1);
+        commits.whenDurable(countDown(durable));
+        assertEquals(0, durable.getCount());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (commits.stats().operations < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, commits.stats().operations);
+    }
+
+    @Test
+    public void groupModeCommitsAFullBatchThenCallsBack() throws InterruptedException {
+        CommitPipeline commits = start(CommitMode.GROUP, NEVER, 3);
+        commits.operation();
+        CountDownLatch durable = new CountDownLatch(1);
+        commits.whenDurable(countDown(durable));
+        commits.operation();
+        assertFalse(durable.await(100, TimeUnit.MILLISECONDS));
+
+        commits.operation();
+
+        assertTrue(durable.await(5, TimeUnit.SECONDS));
+        assertEquals(1, commits.stats().commits);
+        assertEquals(3, commits.stats().operations);
+        assertEquals(3, commits.stats().maxBatchSize);
+    }
+
+    @Test
+    public void groupModeCommitsWithinTheIntervalAlsoForACallbackAlone() throws InterruptedException {
+        CommitPipeline commits = start(CommitMode.GROUP, 20, 100);
+        CountDownLatch durable = new CountDownLatch(2);
+        commits.whenDurable(countDown(durable));
+        commits.operation();
+        commits.whenDurable(countDown(durable));
+
+        assertTrue(durable.await(5, TimeUnit.SECONDS));
+        assertEquals(1, commits.stats().operations);
+    }
+
+    @Test
+    public void closeCommitsThePendingOperations() {
+        CommitPipeline commits = start(CommitMode.GROUP, NEVER, 100);
+        commits.operation();
+        commits.operation();
+        CountDownLatch durable = new CountDownLatch(1);
+        commits.whenDurable(countDown(durable));
+
+        commits.close();
+        m_commits = null;
+
+        assertEquals(0, durable.getCount());
+        assertEquals(1, commits.stats().commits);
+        assertEquals(2, commits.stats().operations);
+    }
+
+    @Test
+    public void everyChangeOfTheStoresIsCountedOnce() {
+        CommitPipeline commits = start(CommitMode.SYNC, NEVER, 100);
+        DefaultSessionsStore sessionsStore = new DefaultSessionsStore(m_db, null);
+        sessionsStore.initStore();
+        sessionsStore.setCommits(commits);
+        commits.setSessionsStore(sessionsStore);
+
+        sessionsStore.updateCleanStatus("c1", false);
+        sessionsStore.bindToDeliver("guid", "c1");
+        sessionsStore.moveToInFlight("c1", 1, "guid");
+        commits.whenDurable(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+
+        assertEquals(3, commits.stats().operations);
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package me.ilbba.mqtt.spi.impl;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import me.ilbba.mqtt.spi.iface.IMessagesStore;
+import me.ilbba.mqtt.spi.iface.ISessionsStore.ClientTopicCouple;
+import me.ilbba.mqtt.spi.subscription.Subscription;
+import me.ilbba.mqtt.spi.subscription.SubscriptionSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DefaultSessionsStoreTest {
+
+    @Rule
+    public TemporaryFolder m_folder = new TemporaryFolder();
+
+    private File m_dbFile;
+    private DB m_db;
+
+    @Before
+    public void setUp() throws IOException {
+        m_dbFile = new File(m_folder.getRoot(), "persistent_store");
+        m_db = DBMaker.newFileDB(m_dbFile).make();
+    }
+
+    @After
+    public void tearDown() {
+        if (!m_db.isClosed()) {
+            m_db.close();
+        }
+    }
+
+    private DefaultSessionsStore reopen() {
+        return reopen(0, OfflineQueueOverflowPolicy.DROP_OLDEST);
+    }
+
+    private DefaultSessionsStore reopen(int maxQueueDepth, OfflineQueueOverflowPolicy overflowPolicy) {
+        return reopen(null, maxQueueDepth, overflowPolicy);
+    }
+
+    private DefaultSessionsStore reopen(IMessagesStore messagesStore) {
+        return reopen(messagesStore, 0, OfflineQueueOverflowPolicy.DROP_OLDEST);
+    }
+
+    private DefaultSessionsStore reopen(IMessagesStore messagesStore, int maxQueueDepth,
+                                        OfflineQueueOverflowPolicy overflowPolicy) {
+        m_db.commit();
+        m_db.close();
+        m_db = DBMaker.newFileDB(m_dbFile).make();
+        DefaultSessionsStore store = new DefaultSessionsStore(m_db, messagesStore, maxQueueDepth, overflowPolicy);
+        store.initStore();
+        return store;
+    }
+
+    private SegmentedMessagesStore openMessagesStore(File directory) {
+        SegmentedMessagesStore messagesStore = new SegmentedMessagesStore(directory,
+                new ConcurrentHashMap<String, String>(), 4096, 100);
+        messagesStore.initStore();
+        return messagesStore;
+    }
+
+    private static String storeMessage(IMessagesStore messagesStore, String payload) {
+        return messagesStore.storePublishForFuture(new IMessagesStore.StoredMessage(
+                payload.getBytes(StandardCharsets.UTF_8), MqttQoS.AT_LEAST_ONCE, "t"));
+    }
+
+    private static boolean isStored(IMessagesStore messagesStore, String guid) {
+        IMessagesStore.StoredMessage message = messagesStore.getMessageByGuid(guid);
+        if (message == null) {
+            return false;
+        }
+        message.release();
+        return true;
+    }
+
+    private static void enqueue(DefaultSessionsStore store, String clientID, String... guids) {
+        for (String guid : guids) {
+            store.bindToDeliver(guid, clientID);
+        }
+    }
+
+    @Test
+    public void sessionRoundTrip() throws IOException {
+        for (boolean cleanSession : new boolean[]{true, false}) {
+            DataOutput2 out = new DataOutput2();
+            DefaultPersistentStore.PersistentSessionSerializer.INSTANCE.serialize(out,
+                    new DefaultPersistentStore.PersistentSession(cleanSession));
+            assertEquals(DefaultPersistentStore.PersistentSessionSerializer.INSTANCE.fixedSize(), out.pos);
+
+            DefaultPersistentStore.PersistentSession read = DefaultPersistentStore.PersistentSessionSerializer.INSTANCE
+                    .deserialize(new DataInput2(out.buf), out.pos);
+            assertEquals(cleanSession, read.cleanSession);
+        }
+    }
+
+    @Test
+    public void storedSubscriptionsAndSessionsSurviveAReopen() {
+        DefaultSessionsStore store = reopen();
+        store.updateCleanStatus("c1", false);
+        store.addNewSubscription(new Subscription("c1", "a/+", MqttQoS.EXACTLY_ONCE));
+
+        store = reopen();
+        Subscription read = store.getSubscription(new ClientTopicCouple("c1", "a/+"));
+        assertEquals(MqttQoS.EXACTLY_ONCE, read.getRequestedQos());
+        assertEquals(1, store.listAllSubscriptions().size());
+        assertTrue(m_db.getCatalog().get("subscriptions.valueSerializer") instanceof SubscriptionSerializer);
+    }
+
+    /**
+     * The layout of the previous versions: a hash map of subscriptions and one of guids per
+     * client, the queues as lists, all written with the java serialization.
+     */
+    @Test
+    public void perClientMapsOfThePreviousVersionsAreMigrated() {
+        Map<String, DefaultPersistentStore.PersistentSession> sessions = m_db.getHashMap("sessions");
+        Map<String, List<String>> queues = m_db.getHashMap("sessionQueue");
+        Map<String, Set<Integer>> packetIDs = m_db.getHashMap("inflightPacketIDs");
+        for (int i = 0; i < 100; i++) {
+            String clientID = "c" + i;
+            sessions.put(clientID, new DefaultPersistentStore.PersistentSession(i % 2 == 0));
+            Map<String, Subscription> subscriptions = m_db.getHashMap("subscriptions_" + clientID);
+            subscriptions.put("t/" + i, new Subscription(clientID, "t/" + i, MqttQoS.valueOf(i % 3)));
+            subscriptions.put("t/#", new Subscription(clientID, "t/#", MqttQoS.AT_MOST_ONCE));
+            Map<Integer, String> guidsMapping = m_db.getHashMap("guidsMapping_" + clientID);
+            guidsMapping.put(1, "guid" + i);
+            queues.put(clientID, new ArrayList<String>(Arrays.asList("q" + i + "a", "q" + i + "b")));
+            packetIDs.put(clientID, new HashSet<Integer>(Arrays.asList(1)));
+        }
+
+        DefaultSessionsStore store = reopen();
+
+        assertEquals(200, store.listAllSubscriptions().size());
+        assertEquals(MqttQoS.AT_LEAST_ONCE, store.getSubscription(new ClientTopicCouple("c7", "t/7")).getRequestedQos());
+        assertEquals(MqttQoS.AT_MOST_ONCE, store.getSubscription(new ClientTopicCouple("c7", "t/#")).getRequestedQos());
+        assertEquals("guid42", store.mapToGuid("c42", 1));
+        assertEquals(Arrays.asList("q3a", "q3b"), new ArrayList<String>(store.enqueued("c3")));
+        assertTrue(store.contains("c99"));
+        Map<String, DefaultPersistentStore.PersistentSession> migratedSessions = m_db.getHashMap("sessions");
+        assertFalse(migratedSessions.get("c99").cleanSession);
+        assertTrue(migratedSessions.get("c98").cleanSession);
+        assertTrue(m_db.getCatalog().get("subscriptions.valueSerializer") instanceof SubscriptionSerializer);
+        assertTrue(m_db.getCatalog().get("sessions.valueSerializer")
+                instanceof DefaultPersistentStore.PersistentSessionSerializer);
+        for (String key : m_db.getCatalog().keySet()) {
+            assertFalse(key, key.startsWith("subscriptions_"));
+            assertFalse(key, key.startsWith("guidsMapping_"));
+            assertFalse(key, key.startsWith("sessionQueue"));
+            assertFalse(key, key.startsWith("inflightPacketIDs"));
+            assertFalse(key, key.startsWith("migrating."));
+        }
+
+        //already migrated, opened as it is
+        store = reopen();
+        assertEquals(200, store.listAllSubscriptions().size());
+        assertEquals("guid42", store.mapToGuid("c42", 1));
+        assertEquals(Arrays.asList("q3a", "q3b"), new ArrayList<String>(store.enqueued("c3")));
+    }
+
+    @Test
+    public void messagesLeftWithoutReferencesByACrashAreDroppedAtTheStart() throws IOException {
+        File directory = m_folder.newFolder();
+        SegmentedMessagesStore messagesStore = openMessagesStore(directory);
+        DefaultSessionsStore store = reopen(messagesStore);
+        String queued = storeMessage(messagesStore, "queued");
+        String inflight = storeMessage(messagesStore, "inflight");
+        //crashed before the enqueue
+        String neverBound = storeMessage(messagesStore, "never bound");
+        //crashed before the removal of the acked message
+        String acked = storeMessage(messagesStore, "acked");
+        store.bindToDeliver(queued, "c1");
+        store.inFlight("c1", store.nextPacketID("c1"), inflight);
+        int ackedID = store.nextPacketID("c1");
+        store.inFlight("c1", ackedID, acked);
+        store.inFlightAck("c1", ackedID);
+        messagesStore.close();
+
+        messagesStore = openMessagesStore(directory);
+        store = reopen(messagesStore);
+
+        assertTrue(isStored(messagesStore, queued));
+        assertTrue(isStored(messagesStore, inflight));
+        assertFalse(isStored(messagesStore, neverBound));
+        assertFalse(isStored(messagesStore, acked));
+
+        //the recovered reference is the last one
+        store.removeEnqueued("c1", queued);
+        List<String> unreferenced = store.takeUnreferenced();
+        assertEquals(Arrays.asList(queued), unreferenced);
+        store.removeUnreferenced(unreferenced);
+        assertFalse(isStored(messagesStore, queued));
+        messagesStore.close();
+
+        //the drops are persisted
+        messagesStore = openMessagesStore(directory);
+        assertTrue(isStored(messagesStore, inflight));
+        assertFalse(isStored(messagesStore, neverBound));
+        assertFalse(isStored(messagesStore, queued));
+        messagesStore.close();
+    }
+
+    @Test
+    public void messagesReferencedAgainAreNotRemoved() throws IOException {
+        SegmentedMessagesStore messagesStore = openMessagesStore(m_folder.newFolder());
+        DefaultSessionsStore store = reopen(messagesStore);
+        String guid = storeMessage(messagesStore, "payload");
+        store.bindToDeliver(guid, "c1");
+        store.removeEnqueued("c1", guid);
+        List<String> unreferenced = store.takeUnreferenced();
+        store.bindToDeliver(guid, "c2");
+
+        store.removeUnreferenced(unreferenced);
+
+        assertTrue(isStored(messagesStore, guid));
+        messagesStore.close();
+    }
+
+    @Test
+    public void packetIdsWrapAroundSkippingTheOnesInUse() {
+        PacketIdAllocator packetIds = new PacketIdAllocator();
+        assertEquals(1, packetIds.allocate());
+        for (int id = 2; id <= PacketIdAllocator.MAX_PACKET_ID; id++) {
+            assertEquals(id, packetIds.allocate());
+            packetIds.release(id);
+        }
+
+        //0 is not a valid identifier and 1 is still in use
+        assertEquals(2, packetIds.allocate());
+        packetIds.release(1);
+        assertEquals(3, packetIds.allocate());
+        assertEquals(2, packetIds.inUse());
+    }
+
+    @Test
+    public void exhaustedPacketIdsAreReusedOnceReleased() {
+        PacketIdAllocator packetIds = new PacketIdAllocator();
+        for (int i = 0; i < PacketIdAllocator.MAX_PACKET_ID; i++) {
+            packetIds.allocate();
+        }
+        try {
+            packetIds.allocate();
+            fail("All the identifiers are in use");
+        } catch (IllegalStateException ex) {
+            //expected
+        }
+
+        assertTrue(packetIds.release(300));
+        assertFalse(packetIds.release(300));
+        assertEquals(300, packetIds.allocate());
+    }
+
+    @Test
+    public void packetIdStaysAllocatedTillThePubcomp() {
+        DefaultSessionsStore store = reopen();
+        final int messageID = store.nextPacketID("c1");
+        store.inFlight("c1", messageID, "guid");
+        //PUBREC
+        store.secondPhaseAckWaiting("c1", messageID);
+
+        for (int i = 1; i < PacketIdAllocator.MAX_PACKET_ID; i++) {
+            assertTrue(store.nextPacketID("c1") != messageID);
+        }
+        try {
+            store.nextPacketID("c1");
+            fail("All the identifiers are in use");
+        } catch (IllegalStateException ex) {
+            //expected
+        }
+        //PUBCOMP
+        store.secondPhaseAcknowledged("c1", messageID);
+        assertEquals(messageID, store.nextPacketID("c1"));
+    }
+
+    @Test
+    public void packetIdsInUseAreRebuiltAfterAReopen() {
+        DefaultSessionsStore store = reopen();
+        store.inFlight("c1", 10, "guid1");
+        store.inFlight("c1", 30, "guid2");
+        store.secondPhaseAckWaiting("c1", 30);
+        store.inFlight("c1", 20, "guid3");
+
+        store = reopen();
+        //after the greatest one in use
+        assertEquals(31, store.nextPacketID("c1"));
+        store.inFlightAck("c1", 10);
+        store.secondPhaseAcknowledged("c1", 30);
+        Set<Integer> allocated = new HashSet<Integer>();
+        for (int i = 1; i < PacketIdAllocator.MAX_PACKET_ID - 1; i++) {
+            assertTrue(allocated.add(store.nextPacketID("c1")));
+        }
+        //only the one still in flight is left out
+        assertTrue(allocated.contains(10));
+        assertTrue(allocated.contains(30));
+        assertFalse(allocated.contains(20));
+    }
+
+    @Test
+    public void fullQueueDropsTheOldestMessages() {
+        DefaultSessionsStore store = reopen(3, OfflineQueueOverflowPolicy.DROP_OLDEST);
+        enqueue(store, "c1", "g1", "g2", "g3", "g4", "g5");
+
+        assertEquals(Arrays.asList("g3", "g4", "g5"), store.enqueued("c1"));
+        assertEquals(Arrays.asList("g1", "g2"), store.takeUnreferenced());
+
+        store = reopen(3, OfflineQueueOverflowPolicy.DROP_OLDEST);
+        enqueue(store, "c1", "g6");
+        assertEquals(Arrays.asList("g4", "g5", "g6"), store.enqueued("c1"));
+        //the other queues have their own room
+        enqueue(store, "c2", "g6");
+        assertEquals(Arrays.asList("g6"), store.enqueued("c2"));
+    }
+
+    @Test
+    public void fullQueueDropsTheNewMessages() {
+        DefaultSessionsStore store = reopen(3, OfflineQueueOverflowPolicy.DROP_NEWEST);
+        enqueue(store, "c1", "g1", "g2", "g3", "g4", "g5");
+
+        assertEquals(Arrays.asList("g1", "g2", "g3"), store.enqueued("c1"));
+        assertEquals(Arrays.asList("g4", "g5"), store.takeUnreferenced());
+
+        store.removeEnqueued("c1", "g1");
+        enqueue(store, "c1", "g6");
+        assertEquals(Arrays.asList("g2", "g3", "g6"), store.enqueued("c1"));
+    }
+
+    @Test
+    public void messagesAckedOutOfOrderAreRemovedFromTheQueue() {
+        DefaultSessionsStore store = reopen();
+        enqueue(store, "c1", "g1", "g2", "g3", "g4", "g5");
+
+        store.removeEnqueued("c1", "g3");
+        store.removeEnqueued("c1", "g1");
+        store.moveToInFlight("c1", 1, "g5");
+        store.removeEnqueued("c1", "unknown");
+        assertEquals(Arrays.asList("g2", "g4"), store.enqueued("c1"));
+        //the one in flight is still referenced
+        assertEquals(Arrays.asList("g3", "g1"), store.takeUnreferenced());
+
+        //the sequences of the queued guids are reloaded
+        store = reopen();
+        store.removeEnqueued("c1", "g4");
+        enqueue(store, "c1", "g6");
+        assertEquals(Arrays.asList("g2", "g6"), store.enqueued("c1"));
+        store.removeEnqueued("c1", "g2");
+        store.removeEnqueued("c1", "g6");
+        assertTrue(store.enqueued("c1").isEmpty());
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package me.ilbba.mqtt.spi.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import me.ilbba.mqtt.spi.iface.IMatchingCondition;
+import me.ilbba.mqtt.spi.iface.IMessagesStore.StoredMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentedMessagesStoreTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder m_folder = new TemporaryFolder();
+
+    private File m_directory;
+    private final ConcurrentMap<String, String> m_retained = new ConcurrentHashMap<String, String>();
+    private SegmentedMessagesStore m_store;
+
+    @Before
+    public void setUp() throws IOException {
+        m_directory = m_folder.newFolder();
+        m_store = open();
+    }
+
+    @After
+    public void tearDown() {
+        m_store.close();
+    }
+
+    private SegmentedMessagesStore open() {
+        SegmentedMessagesStore store = new SegmentedMessagesStore(m_directory, m_retained, SEGMENT_SIZE, 100);
+        store.initStore();
+        return store;
+    }
+
+    private void reopen() {
+        m_store.close();
+        m_store = open();
+    }
+
+    private String store(String topic, String payload) {
+        return m_store.storePublishForFuture(message(topic, payload));
+    }
+
+    private static StoredMessage message(String topic, String payload) {
+        return new StoredMessage(payload.getBytes(StandardCharsets.UTF_8), MqttQoS.AT_LEAST_ONCE, topic);
+    }
+
+    private static String payload(StoredMessage message) {
+        return new String(message.getPayloadBytes(), StandardCharsets.UTF_8);
+    }
+
+    private int segments() {
+        return m_directory.listFiles().length;
+    }
+
+    @Test
+    public void storedMessageIsReadBack() {
+        StoredMessage message = new StoredMessage("hello".getBytes(StandardCharsets.UTF_8), MqttQoS.EXACTLY_ONCE, "a/b");
+        message.setClientID("publisher");
+        message.setMessageID(42);
+        message.setRetained(true);
+        String guid = m_store.storePublishForFuture(message);
+
+        StoredMessage read = m_store.getMessageByGuid(guid);
+        assertEquals("a/b", read.getTopic());
+        assertEquals(MqttQoS.EXACTLY_ONCE, read.getQos());
+        assertEquals("publisher", read.getClientID());
+        assertEquals(Integer.valueOf(42), read.getMessageID());
+        assertTrue(read.isRetained());
+        assertEquals("hello", payload(read));
+        assertEquals(guid, read.getGuid());
+    }
+
+    @Test
+    public void removedMessageIsNotReadable() {
+        String kept = store("a", "kept");
+        String removed = store("a", "removed");
+        m_store.removeStoredMessage(removed);
+
+        assertNull(m_store.getMessageByGuid(removed));
+        assertEquals("kept", payload(m_store.getMessageByGuid(kept)));
+    }
+
+    @Test
+    public void guidNotOfAMessageIsNotReadable() {
+        String guid = store("a", "payload");
+
+        assertNull(m_store.getMessageByGuid(Long.toString(Long.parseLong(guid) + 1)));
+        assertNull(m_store.getMessageByGuid("not a guid"));
+        assertNull(m_store.getMessageByGuid(Long.toString(SEGMENT_SIZE * 100L)));
+    }
+
+    @Test
+    public void recoveryKeepsTheMessagesNotRemoved() {
+        List<String> guids = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) {
+            StoredMessage message = message("t/" + i, "payload-" + i);
+            message.setClientID(i % 2 == 0 ? "even" : null);
+            guids.add(m_store.storePublishForFuture(message));
+        }
+        assertTrue(segments() > 1);
+        m_store.dropMessagesInSession("even");
+        m_store.removeStoredMessage(guids.get(1));
+
+        reopen();
+
+        assertNull(m_store.getMessageByGuid(guids.get(0)));
+        assertNull(m_store.getMessageByGuid(guids.get(1)));
+        for (int i = 3; i < 200; i += 2) {
+            assertEquals("payload-" + i, payload(m_store.getMessageByGuid(guids.get(i))));
+        }
+    }
+
+    @Test
+    public void recoveryStopsAtTheFirstCorruptedRecord() throws IOException {
+        String first = store("a", "first");
+        String second = store("a", "second");
+        m_store.close();
+        RandomAccessFile segment = new RandomAccessFile(m_directory.listFiles()[0], "rw");
+        try {
+            //the last byte of the payload of the second record, the one before its crc
+            segment.seek(Long.parseLong(second));
+            int length = segment.readInt();
+            segment.seek(Long.parseLong(second) + length - 1);
+            segment.write(segment.read() ^ 0xFF);
+        } finally {
+            segment.close();
+        }
+        m_store = open();
+
+        assertEquals("first", payload(m_store.getMessageByGuid(first)));
+        assertNull(m_store.getMessageByGuid(second));
+        //the log goes on from the end of the last valid record
+        assertEquals(second, store("a", "third"));
+    }
+
+    @Test
+    public void retainedMessageSurvivesTheRemovalOfTheStoredOne() {
+        String guid = store("sensors/temp", "21");
+        m_store.storeRetained("sensors/temp", guid);
+        m_store.removeStoredMessage(guid);
+
+        Collection<StoredMessage> retained = m_store.searchMatching(topic("sensors/temp"));
+        assertEquals(1, retained.size());
+        assertEquals("21", payload(retained.iterator().next()));
+
+        m_store.cleanRetained("sensors/temp");
+        assertTrue(m_store.searchMatching(topic("sensors/temp")).isEmpty());
+    }
+
+    @Test
+    public void emptyRetainedMessageClearsTheTopic() {
+        m_store.storeRetained("a", store("a", "payload"));
+        m_store.storeRetained("a", store("a", ""));
+
+        assertTrue(m_retained.isEmpty());
+    }
+
+    @Test
+    public void cleanerDeletesTheSegmentsWithoutMessagesMovingTheRetainedOnes() {
+        String retainedGuid = store("r", "retained");
+        m_store.storeRetained("r", retainedGuid);
+        m_store.removeStoredMessage(retainedGuid);
+        for (int i = 0; i < 300; i++) {
+            m_store.removeStoredMessage(store("m", "message-" + i));
+        }
+        assertTrue(segments() > 2);
+
+        m_store.clean();
+
+        assertEquals(1, segments());
+        reopen();
+        Collection<StoredMessage> retained = m_store.searchMatching(topic("r"));
+        assertEquals(1, retained.size());
+        assertEquals("retained", payload(retained.iterator().next()));
+    }
+
+    @Test
+    public void cleanerSkipsTheSegmentsWithMessagesCarryingTheirTombstones() {
+        String queued = store("q", "queued");
+        String removed = store("q", "removed");
+        for (int i = 0; i < 300; i++) {
+            m_store.removeStoredMessage(store("m", "message-" + i));
+        }
+        //the tombstone is in a later segment than the message
+        m_store.removeStoredMessage(removed);
+        for (int i = 0; i < 100; i++) {
+            m_store.removeStoredMessage(store("m", "message-" + i));
+        }
+        int before = segments();
+
+        m_store.clean();
+
+        assertTrue(segments() < before);
+        assertTrue(new File(m_directory, String.format("%020d.log", 0)).exists());
+        reopen();
+        assertNotNull(m_store.getMessageByGuid(queued));
+        assertNull(m_store.getMessageByGuid(removed));
+    }
+
+    @Test
+    public void activeSegmentIsNeverDeleted() {
+        m_store.removeStoredMessage(store("a", "payload"));
+
+        m_store.clean();
+
+        assertEquals(1, segments());
+        assertNotNull(m_store.getMessageByGuid(store("a", "next")));
+    }
+
+    @Test
+    public void unreferencedMessagesAreDroppedButNotTheRetainedOnes() {
+        String referenced = store("a", "referenced");
+        String unreferenced = store("a", "unreferenced");
+        String retained = store("sensors/temp", "21");
+        m_store.storeRetained("sensors/temp", retained);
+
+        m_store.dropUnreferenced(Collections.singleton(referenced));
+
+        assertEquals("referenced", payload(m_store.getMessageByGuid(referenced)));
+        assertNull(m_store.getMessageByGuid(unreferenced));
+        assertNull(m_store.getMessageByGuid(retained));
+        assertEquals(1, m_store.searchMatching(topic("sensors/temp")).size());
+
+        reopen();
+        assertEquals("referenced", payload(m_store.getMessageByGuid(referenced)));
+        assertNull(m_store.getMessageByGuid(unreferenced));
+        assertEquals(1, m_store.searchMatching(topic("sensors/temp")).size());
+    }
+
+    @Test
+    public void payloadsAreReleasedByTheirOwners() {
+        ByteBuf payload = Unpooled.copiedBuffer("hello", StandardCharsets.UTF_8);
+        String guid = m_store.storePublishForFuture(new StoredMessage(payload, MqttQoS.AT_LEAST_ONCE, "a/b"));
+        //taken over by the store, released once written
+        assertEquals(0, payload.refCnt());
+
+        StoredMessage read = m_store.getMessageByGuid(guid);
+        assertEquals(1, read.refCnt());
+        ByteBuffer copy = read.getPayload();
+        assertTrue(read.getMessage().isReadOnly());
+        m_store.removeStoredMessage(guid);
+        assertEquals(1, read.refCnt());
+        assertEquals("hello", payload(read));
+
+        assertTrue(read.release());
+        assertEquals(0, read.refCnt());
+        assertEquals("hello", StandardCharsets.UTF_8.decode(copy).toString());
+    }
+
+    @Test
+    public void deletedSegmentIsUnmappedOnceItsPayloadsAreReleased() {
+        String guid = store("a", "held");
+        StoredMessage held = m_store.getMessageByGuid(guid);
+        m_store.removeStoredMessage(guid);
+        for (int i = 0; i < 300; i++) {
+            m_store.removeStoredMessage(store("m", "message-" + i));
+        }
+
+        m_store.clean();
+
+        assertEquals(1, segments());
+        //the deleted segment is still mapped for the payload read from it
+        assertEquals(2, m_store.mappedSegments());
+        assertEquals("held", payload(held));
+        assertTrue(held.release());
+        assertEquals(1, m_store.mappedSegments());
+
+        m_store.close();
+        assertEquals(0, m_store.mappedSegments());
+    }
+
+    @Test
+    public void segmentsOfADroppedSessionAreCleaned() {
+        List<String> guids = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) {
+            StoredMessage message = message("t/" + i, "payload-" + i);
+            message.setClientID(i < 150 ? "dropped" : "kept");
+            guids.add(m_store.storePublishForFuture(message));
+        }
+        m_store.dropMessagesInSession("dropped");
+        m_store.dropMessagesInSession("unknown");
+
+        m_store.clean();
+
+        for (int i = 0; i < 150; i++) {
+            assertNull(m_store.getMessageByGuid(guids.get(i)));
+        }
+        for (int i = 150; i < 200; i++) {
+            StoredMessage message = m_store.getMessageByGuid(guids.get(i));
+            assertEquals("payload-" + i, payload(message));
+            message.release();
+        }
+        //only the segments with the messages of the other client are left
+        assertEquals(m_store.mappedSegments(), segments());
+        assertFalse(new File(m_directory, String.format("%020d.log", 0)).exists());
+    }
+
+    private static IMatchingCondition topic(final String topic) {
+        return new IMatchingCondition() {
+            @Override
+            public boolean match(String key) {
+                return topic.equals(key);
+            }
+        };
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package me.ilbba.mqtt.spi.impl;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import me.ilbba.mqtt.spi.iface.ISessionsStore.ClientTopicCouple;
+import me.ilbba.mqtt.spi.subscription.Subscription;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Subscribe and lookup throughput of the sessions store on a file DB, with the subscriptions
+ * in the single map keyed by client and filter or in a map for client, as they were kept
+ * before it.
+ *
+ * mvn clean test-compile -Pbenchmarks, then java -cp target/test-classes:{test classpath} org.openjdk.jmh.Main SessionsStoreBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionsStoreBenchmark {
+
+    private static final int SUBSCRIPTIONS_FOR_CLIENT = 10;
+
+    @Param({"20000"})
+    int clients;
+
+    //composite: DefaultSessionsStore, perClient: a subscriptions_{clientID} map for client
+    @Param({"composite", "perClient"})
+    String layout;
+
+    private File m_dbFile;
+    private DB m_db;
+    private DefaultSessionsStore m_store;
+    private int m_nextClient;
+    private int m_nextLookup;
+
+    @Setup
+    public void setUp() throws IOException {
+        m_dbFile = File.createTempFile("sessions_store", ".db");
+        m_db = DBMaker.newFileDB(m_dbFile).deleteFilesAfterClose().make();
+        m_store = new DefaultSessionsStore(m_db, null);
+        m_store.initStore();
+        for (m_nextClient = 0; m_nextClient < clients; m_nextClient++) {
+            subscribe(m_nextClient);
+        }
+        m_db.commit();
+    }
+
+    @TearDown
+    public void tearDown() {
+        m_db.close();
+    }
+
+    private void subscribe(int client) {
+        String clientID = "client" + client;
+        for (int i = 0; i < SUBSCRIPTIONS_FOR_CLIENT; i++) {
+            Subscription subscription = new Subscription(clientID, "devices/" + client + "/" + i, MqttQoS.AT_LEAST_ONCE);
+            if ("composite".equals(layout)) {
+                m_store.addNewSubscription(subscription);
+            } else {
+                m_db.<String, Subscription>getHashMap("subscriptions_" + clientID)
+                        .put(subscription.getTopicFilter(), subscription);
+            }
+        }
+    }
+
+    /**
+     * The subscriptions of a new client, SUBSCRIPTIONS_FOR_CLIENT for operation.
+     */
+    @Benchmark
+    public void subscribe() {
+        subscribe(m_nextClient++);
+    }
+
+    @Benchmark
+    public Subscription lookup() {
+        int client = m_nextLookup = (m_nextLookup + 7919) % clients;
+        String clientID = "client" + client;
+        String topicFilter = "devices/" + client + "/" + (client % SUBSCRIPTIONS_FOR_CLIENT);
+        if ("composite".equals(layout)) {
+            return m_store.getSubscription(new ClientTopicCouple(clientID, topicFilter));
+        }
+        return m_db.<String, Subscription>getHashMap("subscriptions_" + clientID).get(topicFilter);
+    }
+}
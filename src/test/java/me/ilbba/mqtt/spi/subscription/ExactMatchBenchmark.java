@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package me.ilbba.mqtt.spi.subscription;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matches of published topics against subscriptions of the same shape, with literal filters
+ * resolved by the exact index or with a wildcard level resolved by the tree walk.
+ *
+ * mvn clean test-compile -Pbenchmarks, then java -cp target/test-classes:{test classpath} org.openjdk.jmh.Main ExactMatchBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExactMatchBenchmark {
+
+    private static final int TOPICS = 1024;
+
+    @Param({"100000"})
+    int subscriptions;
+
+    //literal: devices/{n}/status, wildcard: devices/{n}/+
+    @Param({"literal", "wildcard"})
+    String filters;
+
+    private SubscriptionsStore m_store;
+    private String[] m_topics;
+    private int m_next;
+
+    private SubscriptionsStore.MatchSink m_sink;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        m_sink = new SubscriptionsStore.MatchSink() {
+            @Override
+            public void onMatch(Subscription subscription, MqttQoS effectiveQos) {
+                blackhole.consume(subscription);
+            }
+        };
+        m_store = new SubscriptionsStore();
+        final boolean literal = "literal".equals(filters);
+        for (int i = 0; i < subscriptions; i++) {
+            String filter = "devices/" + (i % (subscriptions / 4)) + (literal ? "/status" : "/+");
+            m_store.add(new Subscription("client" + i, filter, MqttQoS.AT_LEAST_ONCE));
+        }
+        m_topics = new String[TOPICS];
+        for (int i = 0; i < TOPICS; i++) {
+            m_topics[i] = "devices/" + (i * 31 % (subscriptions / 4)) + "/status";
+        }
+    }
+
+    @Benchmark
+    public void matches() {
+        m_store.matches(m_topics[m_next++ & (TOPICS - 1)], MqttQoS.AT_LEAST_ONCE, m_sink);
+    }
+
+    @Benchmark
+    public void matchesUnsubscribedTopic() {
+        m_store.matches("devices/unknown/status", MqttQoS.AT_LEAST_ONCE, m_sink);
+    }
+}
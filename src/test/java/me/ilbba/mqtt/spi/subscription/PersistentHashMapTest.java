@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package me.ilbba.mqtt.spi.subscription;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PersistentHashMapTest {
+
+    /**
+     * Key with a chosen hash, to force the collisions.
+     */
+    private static final class Key {
+        final int hash;
+        final int id;
+
+        Key(int hash, int id) {
+            this.hash = hash;
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).id == id;
+        }
+    }
+
+    @Test
+    public void emptyMap() {
+        PersistentHashMap<String, String> map = PersistentHashMap.empty();
+        assertTrue(map.isEmpty());
+        assertNull(map.get("a"));
+        assertSame(map, map.minus("a"));
+    }
+
+    @Test
+    public void updatesDontChangeTheOldVersions() {
+        PersistentHashMap<String, Integer> v1 = PersistentHashMap.<String, Integer>empty().plus("a", 1);
+        PersistentHashMap<String, Integer> v2 = v1.plus("b", 2).plus("a", 3);
+        PersistentHashMap<String, Integer> v3 = v2.minus("a");
+
+        assertEquals(1, v1.size());
+        assertEquals(Integer.valueOf(1), v1.get("a"));
+        assertNull(v1.get("b"));
+        assertEquals(2, v2.size());
+        assertEquals(Integer.valueOf(3), v2.get("a"));
+        assertEquals(1, v3.size());
+        assertNull(v3.get("a"));
+        assertEquals(Integer.valueOf(2), v3.get("b"));
+    }
+
+    @Test
+    public void randomUpdatesWithSpreadHashes() {
+        checkAgainstHashMap(new Random(42), 5000, false);
+    }
+
+    @Test
+    public void randomUpdatesWithCollidingHashes() {
+        checkAgainstHashMap(new Random(7), 50, true);
+    }
+
+    private static void checkAgainstHashMap(Random random, int keys, boolean colliding) {
+        PersistentHashMap<Key, Integer> map = PersistentHashMap.empty();
+        Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        List<PersistentHashMap<Key, Integer>> versions = new ArrayList<PersistentHashMap<Key, Integer>>();
+        List<Map<Integer, Integer>> expectedVersions = new ArrayList<Map<Integer, Integer>>();
+        for (int i = 0; i < 20000; i++) {
+            int id = random.nextInt(keys);
+            if (random.nextInt(3) == 0) {
+                map = map.minus(key(id, colliding));
+                expected.remove(id);
+            } else {
+                int value = random.nextInt();
+                map = map.plus(key(id, colliding), value);
+                expected.put(id, value);
+            }
+            assertEquals(expected.size(), map.size());
+            if (i % 2000 == 0) {
+                versions.add(map);
+                expectedVersions.add(new HashMap<Integer, Integer>(expected));
+            }
+        }
+        versions.add(map);
+        expectedVersions.add(expected);
+
+        for (int v = 0; v < versions.size(); v++) {
+            PersistentHashMap<Key, Integer> version = versions.get(v);
+            Map<Integer, Integer> expectedVersion = expectedVersions.get(v);
+            for (int id = 0; id < keys; id++) {
+                assertEquals(expectedVersion.get(id), version.get(key(id, colliding)));
+            }
+            List<Integer> values = version.values();
+            List<Integer> expectedValues = new ArrayList<Integer>(expectedVersion.values());
+            Collections.sort(values);
+            Collections.sort(expectedValues);
+            assertEquals(expectedValues, values);
+        }
+    }
+
+    private static Key key(int id, boolean colliding) {
+        return new Key(colliding ? id % 7 : id * 0x9E3779B1, id);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package me.ilbba.mqtt.spi.subscription;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+import org.mapdb.Serializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip, serialize then deserialize, of a subscription with the binary serializer, with the
+ * default MapDB serializer the maps used before it and with the java serialization.
+ *
+ * mvn clean test-compile -Pbenchmarks, then java -cp target/test-classes:{test classpath} org.openjdk.jmh.Main SerializersBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializersBenchmark {
+
+    private final Subscription m_subscription =
+            new Subscription("sensor-0042", "building/3/floor/+/temperature", MqttQoS.AT_LEAST_ONCE);
+
+    private DB m_db;
+    private Serializer<Object> m_defaultSerializer;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        m_db = DBMaker.newMemoryDB().make();
+        m_defaultSerializer = m_db.getDefaultSerializer();
+    }
+
+    @TearDown
+    public void tearDown() {
+        m_db.close();
+    }
+
+    @Benchmark
+    public Subscription binary() throws IOException {
+        DataOutput2 out = new DataOutput2();
+        SubscriptionSerializer.INSTANCE.serialize(out, m_subscription);
+        return SubscriptionSerializer.INSTANCE.deserialize(new DataInput2(out.buf), out.pos);
+    }
+
+    @Benchmark
+    public Object mapdbDefault() throws IOException {
+        DataOutput2 out = new DataOutput2();
+        m_defaultSerializer.serialize(out, m_subscription);
+        return m_defaultSerializer.deserialize(new DataInput2(out.buf), out.pos);
+    }
+
+    @Benchmark
+    public Object java() throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(m_subscription);
+        out.close();
+        return new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    }
+}
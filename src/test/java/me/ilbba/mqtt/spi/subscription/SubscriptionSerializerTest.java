@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package me.ilbba.mqtt.spi.subscription;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.Test;
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriptionSerializerTest {
+
+    private static Subscription roundTrip(Subscription subscription) throws IOException {
+        DataOutput2 out = new DataOutput2();
+        SubscriptionSerializer.INSTANCE.serialize(out, subscription);
+        return SubscriptionSerializer.INSTANCE.deserialize(new DataInput2(Arrays.copyOf(out.buf, out.pos)), out.pos);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        for (MqttQoS qos : new MqttQoS[]{MqttQoS.AT_MOST_ONCE, MqttQoS.AT_LEAST_ONCE, MqttQoS.EXACTLY_ONCE}) {
+            Subscription read = roundTrip(new Subscription("client", "sensors/+/temperature", qos));
+            assertEquals("client", read.getClientId());
+            assertEquals("sensors/+/temperature", read.getTopicFilter());
+            assertEquals(qos, read.getRequestedQos());
+            assertTrue(read.active);
+        }
+    }
+
+    @Test
+    public void roundTripOfInactiveSubscriptionWithUnicodeAndNullStrings() throws IOException {
+        Subscription subscription = new Subscription(null, "città/#", MqttQoS.AT_LEAST_ONCE);
+        subscription.active = false;
+
+        Subscription read = roundTrip(subscription);
+        assertNull(read.getClientId());
+        assertEquals("città/#", read.getTopicFilter());
+        assertFalse(read.active);
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownVersionIsRejected() throws IOException {
+        SubscriptionSerializer.INSTANCE.deserialize(new DataInput2(new byte[]{(byte) 99, 0, 0, 0}), 4);
+    }
+
+    @Test
+    public void javaSerializationResolvesToTheSingleton() throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(SubscriptionSerializer.INSTANCE);
+        out.close();
+
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertSame(SubscriptionSerializer.INSTANCE, in.readObject());
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package me.ilbba.mqtt.spi.subscription;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap retained by the subscriptions tree for a number of subscriptions sharing a small
+ * vocabulary of level names, as the topic filters of a fleet of devices do. The result is the
+ * bytesPerSubscription counter, measured after a full gc; the time is the one of the load.
+ *
+ * mvn clean test-compile -Pbenchmarks, then java -cp target/test-classes:{test classpath} org.openjdk.jmh.Main SubscriptionsFootprintBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+//the event counters are summed over the iterations, a single one reports the footprint as is
+@Measurement(iterations = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SubscriptionsFootprintBenchmark {
+
+    private static final String[] KINDS = {"status", "cmd", "temperature", "humidity", "battery"};
+
+    @Param({"1000000"})
+    int subscriptions;
+
+    private String[] m_clientIDs;
+    private String[] m_filters;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        public long bytesPerSubscription;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytesPerSubscription = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        //built once, so only the tree and what it references are measured
+        m_clientIDs = new String[subscriptions];
+        m_filters = new String[subscriptions];
+        for (int i = 0; i < subscriptions; i++) {
+            //sensors/{building}/{floor}/{kind}, a few thousands distinct level names
+            String filter = "sensors/building" + (i % 1000) + "/floor" + (i / 1000 % 50) + "/" + KINDS[i % KINDS.length];
+            m_clientIDs[i] = "client" + i;
+            m_filters[i] = i % 10 == 0 ? filter.replace("/floor", "/+/floor") : filter;
+        }
+    }
+
+    @Benchmark
+    public SubscriptionsStore load(Footprint footprint) throws InterruptedException {
+        final long empty = usedHeap();
+        SubscriptionsStore store = new SubscriptionsStore();
+        for (int i = 0; i < subscriptions; i++) {
+            store.add(new Subscription(m_clientIDs[i], m_filters[i], MqttQoS.AT_LEAST_ONCE));
+        }
+        final long loaded = usedHeap();
+        footprint.bytesPerSubscription = (loaded - empty) / subscriptions;
+        return store;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package me.ilbba.mqtt.spi.subscription;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SubscriptionsSnapshotTest {
+
+    @Rule
+    public TemporaryFolder m_folder = new TemporaryFolder();
+
+    private static Subscription subscription(String clientID, String topicFilter, MqttQoS qos) {
+        return new Subscription(clientID, topicFilter, qos);
+    }
+
+    private static Set<String> describe(Collection<Subscription> subscriptions) {
+        Set<String> res = new TreeSet<String>();
+        for (Subscription sub : subscriptions) {
+            res.add(sub.getClientId() + " " + sub.getTopicFilter() + " " + sub.getRequestedQos().value());
+        }
+        return res;
+    }
+
+    private static Set<String> describe(String... subscriptions) {
+        return new TreeSet<String>(Arrays.asList(subscriptions));
+    }
+
+    @Test
+    public void noSnapshot() throws IOException {
+        assertNull(new SubscriptionsSnapshot(m_folder.newFolder()).load());
+    }
+
+    @Test
+    public void writtenSnapshotIsLoaded() throws IOException {
+        File directory = m_folder.newFolder();
+        SubscriptionsSnapshot snapshot = new SubscriptionsSnapshot(directory);
+        snapshot.write(Arrays.asList(
+                subscription("c1", "a/b", MqttQoS.AT_MOST_ONCE),
+                subscription("c1", "a/#", MqttQoS.EXACTLY_ONCE),
+                subscription("c2", "+/b", MqttQoS.AT_LEAST_ONCE)));
+        snapshot.close();
+
+        assertEquals(describe("c1 a/b 0", "c1 a/# 2", "c2 +/b 1"),
+                describe(new SubscriptionsSnapshot(directory).load()));
+    }
+
+    @Test
+    public void journaledChangesAreReplayedOnTheSnapshot() throws IOException {
+        File directory = m_folder.newFolder();
+        SubscriptionsSnapshot snapshot = new SubscriptionsSnapshot(directory);
+        snapshot.journalAdd(subscription("c1", "a/b", MqttQoS.AT_MOST_ONCE));
+        snapshot.rotateJournal();
+        snapshot.write(Arrays.asList(subscription("c1", "a/b", MqttQoS.AT_MOST_ONCE),
+                subscription("c2", "x", MqttQoS.AT_LEAST_ONCE)));
+        snapshot.journalAdd(subscription("c1", "a/b", MqttQoS.EXACTLY_ONCE));
+        snapshot.journalAdd(subscription("c3", "y", MqttQoS.AT_LEAST_ONCE));
+        snapshot.journalAdd(subscription("c3", "z", MqttQoS.AT_LEAST_ONCE));
+        snapshot.journalRemove("c3", "y");
+        snapshot.journalRemoveClient("c2");
+        snapshot.close();
+
+        assertEquals(describe("c1 a/b 2", "c3 z 1"), describe(new SubscriptionsSnapshot(directory).load()));
+    }
+
+    @Test
+    public void failedSnapshotKeepsTheRotatedJournal() throws IOException {
+        File directory = m_folder.newFolder();
+        SubscriptionsSnapshot snapshot = new SubscriptionsSnapshot(directory);
+        snapshot.write(Arrays.asList(subscription("c1", "a", MqttQoS.AT_MOST_ONCE)));
+        snapshot.journalAdd(subscription("c2", "b", MqttQoS.AT_MOST_ONCE));
+        snapshot.rotateJournal();
+        //the snapshot is not written, the next rotation appends to the rotated journal
+        snapshot.journalAdd(subscription("c3", "c", MqttQoS.AT_MOST_ONCE));
+        snapshot.rotateJournal();
+        snapshot.journalRemove("c1", "a");
+        snapshot.close();
+
+        assertEquals(describe("c2 b 0", "c3 c 0"), describe(new SubscriptionsSnapshot(directory).load()));
+    }
+
+    @Test
+    public void truncatedJournalRecordIsIgnored() throws IOException {
+        File directory = m_folder.newFolder();
+        SubscriptionsSnapshot snapshot = new SubscriptionsSnapshot(directory);
+        snapshot.write(Arrays.asList(subscription("c1", "a", MqttQoS.AT_MOST_ONCE)));
+        snapshot.journalAdd(subscription("c2", "b", MqttQoS.AT_LEAST_ONCE));
+        snapshot.journalAdd(subscription("c3", "c", MqttQoS.AT_LEAST_ONCE));
+        snapshot.close();
+        truncate(new File(directory, "subscriptions.journal"), 3);
+
+        assertEquals(describe("c1 a 0", "c2 b 1"), describe(new SubscriptionsSnapshot(directory).load()));
+    }
+
+    @Test
+    public void stringsLongerThan64KBAreKept() throws IOException {
+        StringBuilder level = new StringBuilder();
+        for (int i = 0; i < 40000; i++) {
+            //two UTF-8 bytes each
+            level.append('\u00e8');
+        }
+        final String longFilter = "a/" + level + "/+";
+        final String longClientID = "c" + level;
+        File directory = m_folder.newFolder();
+        SubscriptionsSnapshot snapshot = new SubscriptionsSnapshot(directory);
+        snapshot.write(Arrays.asList(subscription("c1", longFilter, MqttQoS.AT_LEAST_ONCE)));
+        snapshot.journalAdd(subscription(longClientID, "b/" + level, MqttQoS.EXACTLY_ONCE));
+        snapshot.journalAdd(subscription("c3", "c", MqttQoS.AT_MOST_ONCE));
+        snapshot.close();
+
+        assertEquals(describe("c1 " + longFilter + " 1", longClientID + " b/" + level + " 2", "c3 c 0"),
+                describe(new SubscriptionsSnapshot(directory).load()));
+    }
+
+    @Test
+    public void corruptedSnapshotIsIgnored() throws IOException {
+        File directory = m_folder.newFolder();
+        SubscriptionsSnapshot snapshot = new SubscriptionsSnapshot(directory);
+        snapshot.write(Arrays.asList(subscription("c1", "a", MqttQoS.AT_MOST_ONCE)));
+        snapshot.close();
+        RandomAccessFile file = new RandomAccessFile(new File(directory, "subscriptions.snapshot"), "rw");
+        try {
+            file.seek(12);
+            file.write(0x7F);
+        } finally {
+            file.close();
+        }
+
+        assertNull(new SubscriptionsSnapshot(directory).load());
+    }
+
+    @Test
+    public void storeIsReloadedFromItsSnapshot() throws IOException {
+        String directory = m_folder.newFolder().getPath();
+        SubscriptionsStore store = new SubscriptionsStore();
+        store.enableSnapshot(directory, 0);
+        store.add(subscription("c1", "a/+", MqttQoS.AT_LEAST_ONCE));
+        store.add(subscription("c2", "a/b", MqttQoS.AT_MOST_ONCE));
+        store.close();
+
+        SubscriptionsStore reloaded = new SubscriptionsStore();
+        reloaded.enableSnapshot(directory, 0);
+        //no sessions store is needed, the snapshot is there
+        reloaded.init(null);
+        assertEquals(describe("c1 a/+ 1", "c2 a/b 0"), describe(reloaded.matches("a/b")));
+        reloaded.close();
+    }
+
+    private static void truncate(File file, int bytes) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - bytes);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,506 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package me.ilbba.mqtt.spi.subscription;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import me.ilbba.mqtt.spi.iface.ISessionsStore;
+import me.ilbba.mqtt.spi.iface.ISessionsStore.ClientTopicCouple;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class SubscriptionsStoreTest {
+
+    private static final int WARM_UP_MATCHES = 50000;
+    private static final int MEASURED_MATCHES = 10000;
+
+    private SubscriptionsStore m_store;
+
+    @Before
+    public void setUp() {
+        m_store = new SubscriptionsStore();
+        subscribe("c1", "a/b/c", MqttQoS.AT_MOST_ONCE);
+        subscribe("c2", "a/+/c", MqttQoS.AT_LEAST_ONCE);
+        subscribe("c3", "a/#", MqttQoS.EXACTLY_ONCE);
+        subscribe("c4", "#", MqttQoS.AT_MOST_ONCE);
+        subscribe("c5", "+/b/c", MqttQoS.AT_LEAST_ONCE);
+        subscribe("c1", "a/b/#", MqttQoS.EXACTLY_ONCE);
+    }
+
+    private void subscribe(String clientID, String topicFilter, MqttQoS qos) {
+        m_store.add(new Subscription(clientID, topicFilter, qos));
+    }
+
+    private Set<String> matches(String topic) {
+        Set<String> clients = new TreeSet<String>();
+        for (Subscription subscription : m_store.matches(topic)) {
+            clients.add(subscription.getClientId() + ":" + subscription.getRequestedQos().value());
+        }
+        return clients;
+    }
+
+    @Test
+    public void matchesOneSubscriptionForClientWithTheGreatestQos() {
+        assertEquals(new TreeSet<String>(Arrays.asList("c1:2", "c2:1", "c3:2", "c4:0", "c5:1")), matches("a/b/c"));
+        assertEquals(new TreeSet<String>(Arrays.asList("c2:1", "c3:2", "c4:0")), matches("a/x/c"));
+        assertEquals(new TreeSet<String>(Arrays.asList("c3:2", "c4:0")), matches("a"));
+        assertEquals(new TreeSet<String>(Arrays.asList("c4:0")), matches("b"));
+    }
+
+    @Test
+    public void removedSubscriptionsDontMatch() {
+        m_store.removeSubscription("a/b/#", "c1");
+        m_store.removeForClients(Arrays.asList("c3", "c4"));
+        assertEquals(new TreeSet<String>(Arrays.asList("c1:0", "c2:1", "c5:1")), matches("a/b/c"));
+        assertEquals(3, m_store.size());
+    }
+
+    @Test
+    public void removeForClientsRemovesOnlyTheSubscriptionsOfTheBatch() {
+        for (int i = 0; i < 100; i++) {
+            subscribe("d" + i, "devices/" + i + "/cmd", MqttQoS.AT_LEAST_ONCE);
+            subscribe("d" + i, "devices/+/broadcast", MqttQoS.AT_MOST_ONCE);
+        }
+        List<String> batch = new ArrayList<String>();
+        for (int i = 0; i < 100; i += 2) {
+            batch.add("d" + i);
+        }
+        batch.add("never-subscribed");
+
+        m_store.removeForClients(batch);
+
+        assertEquals(6 + 100, m_store.size());
+        assertEquals(new TreeSet<String>(Arrays.asList("c4:0")), matches("devices/4/cmd"));
+        assertEquals(new TreeSet<String>(Arrays.asList("c4:0", "d5:1")), matches("devices/5/cmd"));
+        assertEquals(50 + 1, matches("devices/7/broadcast").size());
+        //a removed client subscribes again from scratch
+        subscribe("d4", "devices/4/cmd", MqttQoS.EXACTLY_ONCE);
+        assertEquals(new TreeSet<String>(Arrays.asList("c4:0", "d4:2")), matches("devices/4/cmd"));
+    }
+
+    /**
+     * A sessions store that only lists the subscriptions, as the init reads them.
+     */
+    private static ISessionsStore storedSubscriptions(final Map<ClientTopicCouple, Subscription> stored) {
+        return (ISessionsStore) Proxy.newProxyInstance(ISessionsStore.class.getClassLoader(),
+                new Class<?>[]{ISessionsStore.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("listAllSubscriptions")) {
+                            return new ArrayList<ClientTopicCouple>(stored.keySet());
+                        }
+                        if (method.getName().equals("getSubscription")) {
+                            return stored.get(args[0]);
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    @Test
+    public void bulkLoadBuildsTheSameTreeOfTheSingleAdds() {
+        Map<ClientTopicCouple, Subscription> stored = new LinkedHashMap<ClientTopicCouple, Subscription>();
+        SubscriptionsStore oneByOne = new SubscriptionsStore();
+        for (int i = 0; i < 2000; i++) {
+            String clientID = "client" + i;
+            for (String filter : new String[]{"site" + i % 7 + "/" + i + "/status", "site" + i % 7 + "/+/alarm",
+                    "+/" + i % 3 + "/#", "$share/workers/jobs/" + i % 5}) {
+                Subscription sub = new Subscription(clientID, filter, MqttQoS.valueOf(i % 3));
+                stored.put(new ClientTopicCouple(clientID, filter), sub);
+                oneByOne.add(sub);
+            }
+        }
+        //listed but not stored anymore, skipped
+        stored.put(new ClientTopicCouple("gone", "site1/gone"), null);
+
+        SubscriptionsStore bulk = new SubscriptionsStore();
+        bulk.init(storedSubscriptions(stored));
+
+        assertEquals(8000, bulk.size());
+        assertEquals(oneByOne.size(), bulk.size());
+        assertEquals(oneByOne.distinctFiltersCount(), bulk.distinctFiltersCount());
+        assertEquals(oneByOne.firstLevelSizes(), bulk.firstLevelSizes());
+        for (String topic : new String[]{"site3/10/status", "site3/10/alarm", "x/1/y", "site1/1/z", "jobs/2"}) {
+            assertEquals(topic, clients(oneByOne.matches(topic)), clients(bulk.matches(topic)));
+        }
+    }
+
+    private static Set<String> clients(List<Subscription> subscriptions) {
+        Set<String> clients = new TreeSet<String>();
+        for (Subscription subscription : subscriptions) {
+            clients.add(subscription.getClientId() + ":" + subscription.getRequestedQos().value());
+        }
+        return clients;
+    }
+
+    @Test
+    public void sinkReceivesTheQosCappedByThePublishedOne() {
+        final Set<String> received = new TreeSet<String>();
+        m_store.matches("a/b/c", MqttQoS.AT_LEAST_ONCE, new SubscriptionsStore.MatchSink() {
+            @Override
+            public void onMatch(Subscription subscription, MqttQoS effectiveQos) {
+                received.add(subscription.getClientId() + ":" + effectiveQos.value());
+            }
+        });
+
+        assertEquals(new TreeSet<String>(Arrays.asList("c1:1", "c2:1", "c3:1", "c4:0", "c5:1")), received);
+    }
+
+    @Test
+    public void matchesInAReusedListDontAllocateAfterWarmUp() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled());
+
+        final String topic = "a/b/c";
+        List<Subscription> results = new ArrayList<Subscription>();
+        for (int i = 0; i < WARM_UP_MATCHES; i++) {
+            results.clear();
+            m_store.matches(topic, results);
+        }
+        int matches = 0;
+        final long threadID = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(threadID);
+        for (int i = 0; i < MEASURED_MATCHES; i++) {
+            results.clear();
+            m_store.matches(topic, results);
+            matches += results.size();
+        }
+        long allocated = allocations.getThreadAllocatedBytes(threadID) - before;
+
+        assertEquals(5 * MEASURED_MATCHES, matches);
+        //less than a byte for every match, the measure itself may allocate something
+        assertTrue("allocated " + allocated + " bytes", allocated < MEASURED_MATCHES);
+    }
+
+    @Test
+    public void handlesOfTheUnregisteredClientsAreReused() {
+        ClientRegistry registry = new ClientRegistry();
+        ClientRegistry.Handle first = registry.register("first");
+        ClientRegistry.Handle second = registry.register("second");
+        assertSame(first, registry.register("first"));
+
+        registry.unregister("first");
+        assertNull(registry.handle("first"));
+        ClientRegistry.Handle third = registry.register("third");
+
+        assertEquals(first.id, third.id);
+        assertEquals(2, registry.size());
+        assertEquals(2, registry.capacity());
+        assertTrue(second.id != third.id);
+    }
+
+    @Test
+    public void clientReusingAHandleMatchesOnlyItsSubscriptions() {
+        //c4 goes away with the handle, the next client takes it
+        m_store.removeForClient("c4");
+        subscribe("c6", "x/y", MqttQoS.AT_LEAST_ONCE);
+        subscribe("c6", "a/b/+", MqttQoS.AT_MOST_ONCE);
+
+        assertEquals(new TreeSet<String>(Arrays.asList("c6:1")), matches("x/y"));
+        assertEquals(new TreeSet<String>(Arrays.asList("c1:2", "c2:1", "c3:2", "c5:1", "c6:0")), matches("a/b/c"));
+        assertEquals(new TreeSet<String>(), matches("z"));
+    }
+
+    private static Map<String, Long> sizes(Object... levelAndSizes) {
+        Map<String, Long> sizes = new HashMap<String, Long>();
+        for (int i = 0; i < levelAndSizes.length; i += 2) {
+            sizes.put((String) levelAndSizes[i], ((Number) levelAndSizes[i + 1]).longValue());
+        }
+        return sizes;
+    }
+
+    @Test
+    public void countersFollowTheAddsAndTheRemovals() {
+        assertEquals(6, m_store.size());
+        assertEquals(6, m_store.distinctFiltersCount());
+        assertEquals(sizes("a", 4, "#", 1, "+", 1), m_store.firstLevelSizes());
+
+        //another client on an exact filter, then the same subscription replaced
+        subscribe("c2", "a/b/c", MqttQoS.EXACTLY_ONCE);
+        subscribe("c2", "a/b/c", MqttQoS.AT_MOST_ONCE);
+        //the shared ones are counted by the filter after the group
+        subscribe("w1", "$share/g/b/+", MqttQoS.AT_LEAST_ONCE);
+        subscribe("w2", "$share/g/b/+", MqttQoS.AT_LEAST_ONCE);
+        assertEquals(9, m_store.size());
+        assertEquals(7, m_store.distinctFiltersCount());
+        assertEquals(5, m_store.firstLevelSize("a"));
+        assertEquals(2, m_store.firstLevelSize("b"));
+        assertEquals(1, m_store.firstLevelSize("#"));
+        assertEquals(sizes("a", 5, "b", 2, "#", 1, "+", 1), m_store.firstLevelSizes());
+
+        m_store.removeSubscription("a/b/c", "c1");
+        assertEquals(7, m_store.distinctFiltersCount());
+        m_store.removeSubscription("a/b/c", "c2");
+        m_store.removeForClient("c3");
+        m_store.removeSubscription("$share/g/b/+", "w1");
+        m_store.removeForClient("w2");
+        assertEquals(4, m_store.size());
+        assertEquals(4, m_store.distinctFiltersCount());
+        assertEquals(0, m_store.firstLevelSize("b"));
+        assertEquals(0, m_store.firstLevelSize("unknown"));
+        assertEquals(sizes("a", 2, "#", 1, "+", 1), m_store.firstLevelSizes());
+    }
+
+    @Test
+    public void removalsPruneTheBranchesTheyEmpty() {
+        subscribe("c6", "deep/1/2/3/+", MqttQoS.AT_LEAST_ONCE);
+        subscribe("c7", "deep/1/2/#", MqttQoS.AT_LEAST_ONCE);
+        subscribe("c8", "a/b/deep/+", MqttQoS.AT_LEAST_ONCE);
+        m_store.removeSubscription("deep/1/2/3/+", "c6");
+        m_store.removeForClients(Arrays.asList("c7", "c8"));
+
+        assertFalse(m_store.dumpTree(), m_store.dumpTree().contains("deep"));
+        //nothing left to the compactor
+        assertEquals(0, m_store.compact(1));
+        assertEquals(6, m_store.size());
+    }
+
+    @Test
+    public void compactDropsTheDeadNodesOverTheThreshold() throws Exception {
+        //a dead branch a/dead/x, as left by a path that doesn't prune
+        Field shardsField = SubscriptionsStore.class.getDeclaredField("m_shards");
+        shardsField.setAccessible(true);
+        @SuppressWarnings("unchecked")
+        AtomicReferenceArray<TreeNode> shards = (AtomicReferenceArray<TreeNode>) shardsField.get(m_store);
+        final int shard = m_store.shardForTopic("a");
+        TreeNode root = shards.get(shard).copy();
+        TreeNode a = root.childWithToken(new Token("a")).copy();
+        TreeNode dead = new TreeNode();
+        dead.setToken(new Token("dead"));
+        TreeNode x = new TreeNode();
+        x.setToken(new Token("x"));
+        dead.addChild(x);
+        a.addChild(dead);
+        root.addChild(a);
+        shards.set(shard, root);
+        Set<String> before = matches("a/dead/x");
+
+        //2 dead nodes of 8
+        assertEquals(0, m_store.compact(50));
+        assertEquals(2, m_store.compact(25));
+        assertEquals(0, m_store.compact(1));
+
+        assertFalse(m_store.dumpTree().contains("dead"));
+        assertEquals(before, matches("a/dead/x"));
+        assertEquals(6, m_store.size());
+        assertEquals(6, m_store.distinctFiltersCount());
+    }
+
+    @Test
+    public void validateRejectsSharedSubscriptionsWithoutGroupOrFilter() {
+        assertTrue(SubscriptionsStore.validate("$share/g/a/+/c"));
+        assertTrue(SubscriptionsStore.validate("$share/g/#"));
+        assertFalse(SubscriptionsStore.validate("$share/g"));
+        assertFalse(SubscriptionsStore.validate("$share/g/"));
+        assertFalse(SubscriptionsStore.validate("$share//a"));
+        assertFalse(SubscriptionsStore.validate("$share/+/a"));
+        assertFalse(SubscriptionsStore.validate("$share/g/a/#/c"));
+    }
+
+    private SubscriptionsStore sharedWorkers() {
+        SubscriptionsStore store = new SubscriptionsStore();
+        store.add(new Subscription("w1", "$share/workers/jobs/+", MqttQoS.AT_LEAST_ONCE));
+        store.add(new Subscription("w2", "$share/workers/jobs/+", MqttQoS.AT_LEAST_ONCE));
+        store.add(new Subscription("w3", "$share/workers/jobs/+", MqttQoS.AT_LEAST_ONCE));
+        store.add(new Subscription("monitor", "jobs/#", MqttQoS.AT_MOST_ONCE));
+        return store;
+    }
+
+    /**
+     * @return the member of the workers group that received a message published on topic.
+     */
+    private static String selectedWorker(SubscriptionsStore store, String topic) {
+        Set<String> clients = clients(store.matches(topic));
+        assertTrue(topic + " " + clients, clients.remove("monitor:0"));
+        assertEquals(topic + " " + clients, 1, clients.size());
+        return clients.iterator().next();
+    }
+
+    @Test
+    public void roundRobinDeliversToEveryMemberInTurn() {
+        SubscriptionsStore store = sharedWorkers();
+
+        Map<String, Integer> received = new TreeMap<String, Integer>();
+        for (int i = 0; i < 30; i++) {
+            String worker = selectedWorker(store, "jobs/" + i);
+            received.put(worker, received.containsKey(worker) ? received.get(worker) + 1 : 1);
+        }
+
+        assertEquals("{w1:1=10, w2:1=10, w3:1=10}", received.toString());
+    }
+
+    @Test
+    public void stickyHashDeliversTheMessagesOfATopicToTheSameMember() {
+        SubscriptionsStore store = sharedWorkers();
+        store.setSharedSubscriptionStrategy(SharedSubscriptionStrategy.STICKY_HASH);
+
+        Set<String> selected = new TreeSet<String>();
+        for (int i = 0; i < 30; i++) {
+            String worker = selectedWorker(store, "jobs/" + i);
+            for (int j = 0; j < 5; j++) {
+                assertEquals(worker, selectedWorker(store, "jobs/" + i));
+            }
+            selected.add(worker);
+        }
+        assertEquals(3, selected.size());
+    }
+
+    @Test
+    public void leastInflightDeliversToTheMemberWithLessMessagesInFlight() {
+        SubscriptionsStore store = sharedWorkers();
+        store.setSharedSubscriptionStrategy(SharedSubscriptionStrategy.LEAST_INFLIGHT);
+        final Map<String, Integer> inflight = new HashMap<String, Integer>();
+        inflight.put("w1", 5);
+        inflight.put("w2", 0);
+        inflight.put("w3", 2);
+        store.setInflightCounter(new SubscriptionsStore.InflightCounter() {
+            @Override
+            public int inflight(String clientID) {
+                return inflight.get(clientID);
+            }
+        });
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("w2:1", selectedWorker(store, "jobs/" + i));
+        }
+        inflight.put("w3", 0);
+        Set<String> selected = new TreeSet<String>();
+        for (int i = 0; i < 10; i++) {
+            selected.add(selectedWorker(store, "jobs/" + i));
+        }
+        //the ties are balanced
+        assertEquals(new TreeSet<String>(Arrays.asList("w2:1", "w3:1")), selected);
+    }
+
+    @Test
+    public void removedMembersDontReceiveTheSharedMessages() {
+        SubscriptionsStore store = sharedWorkers();
+        store.removeSubscription("$share/workers/jobs/+", "w1");
+        store.removeForClient("w3");
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("w2:1", selectedWorker(store, "jobs/" + i));
+        }
+        store.removeSubscription("$share/workers/jobs/+", "w2");
+        assertEquals(new TreeSet<String>(Arrays.asList("monitor:0")), clients(store.matches("jobs/1")));
+    }
+
+    @Test
+    public void repeatedMatchesAreServedByTheCache() {
+        SubscriptionsStore store = new SubscriptionsStore(16, 100);
+        store.add(new Subscription("c1", "a/+/c", MqttQoS.AT_LEAST_ONCE));
+
+        assertEquals(clients(store.matches("a/b/c")), clients(store.matches("a/b/c")));
+
+        SubscriptionsStore.MatchesCacheStats stats = store.matchesCacheStats();
+        assertEquals(1, stats.misses);
+        assertEquals(1, stats.hits);
+        assertEquals(0, stats.invalidations);
+    }
+
+    @Test
+    public void cachedMatchesAreInvalidatedByAddAndRemove() {
+        SubscriptionsStore store = new SubscriptionsStore(16, 100);
+        store.add(new Subscription("c1", "a/+/c", MqttQoS.AT_LEAST_ONCE));
+        store.matches("a/b/c");
+
+        //same shard of the topic
+        store.add(new Subscription("c2", "a/b/+", MqttQoS.AT_MOST_ONCE));
+        assertEquals(new TreeSet<String>(Arrays.asList("c1:1", "c2:0")), clients(store.matches("a/b/c")));
+        //shard of the wildcard first levels
+        store.add(new Subscription("c3", "+/b/c", MqttQoS.EXACTLY_ONCE));
+        assertEquals(new TreeSet<String>(Arrays.asList("c1:1", "c2:0", "c3:2")), clients(store.matches("a/b/c")));
+        //exact filter of the topic
+        store.add(new Subscription("c4", "a/b/c", MqttQoS.AT_MOST_ONCE));
+        assertEquals(new TreeSet<String>(Arrays.asList("c1:1", "c2:0", "c3:2", "c4:0")),
+                clients(store.matches("a/b/c")));
+        store.removeSubscription("a/b/+", "c2");
+        store.removeSubscription("a/b/c", "c4");
+        assertEquals(new TreeSet<String>(Arrays.asList("c1:1", "c3:2")), clients(store.matches("a/b/c")));
+
+        assertEquals(4, store.matchesCacheStats().invalidations);
+        assertEquals(0, store.matchesCacheStats().hits);
+    }
+
+    @Test
+    public void subscriptionsOfAnotherShardDontInvalidateTheCachedMatches() {
+        SubscriptionsStore store = new SubscriptionsStore(16, 100);
+        store.add(new Subscription("c1", "a/+/c", MqttQoS.AT_LEAST_ONCE));
+        store.matches("a/b/c");
+
+        store.add(new Subscription("c2", otherShardLevel(store, "a") + "/+", MqttQoS.AT_LEAST_ONCE));
+        assertEquals(new TreeSet<String>(Arrays.asList("c1:1")), clients(store.matches("a/b/c")));
+
+        assertEquals(1, store.matchesCacheStats().hits);
+        assertEquals(0, store.matchesCacheStats().invalidations);
+    }
+
+    @Test
+    public void cachedMatchesOfATopicStartingWithTheSharedPrefixAreStampedByItsFirstLevel() {
+        SubscriptionsStore store = new SubscriptionsStore(16, 100);
+        final String topic = "$share/g/" + otherShardLevel(store, "$share") + "/c";
+        store.add(new Subscription("c1", "#", MqttQoS.AT_LEAST_ONCE));
+        store.matches(topic);
+
+        //the shard of the level after the group isn't the one read by the match
+        store.add(new Subscription("c2", matchingLevel(topic) + "/+", MqttQoS.AT_MOST_ONCE));
+        assertEquals(new TreeSet<String>(Arrays.asList("c1:1")), clients(store.matches(topic)));
+
+        assertEquals(1, store.matchesCacheStats().hits);
+        assertEquals(0, store.matchesCacheStats().invalidations);
+    }
+
+    private static String matchingLevel(String sharedTopic) {
+        return SubscriptionsStore.matchingFilter(sharedTopic).split("/")[0];
+    }
+
+    /**
+     * A first level falling in a shard different from the one of level and of the wildcards.
+     */
+    private static String otherShardLevel(SubscriptionsStore store, String level) {
+        int shard = store.shardForTopic(level);
+        for (int i = 0; ; i++) {
+            int other = store.shardForTopic("x" + i);
+            if (other != shard && other != store.shardForTopic("#")) {
+                return "x" + i;
+            }
+        }
+    }
+}